@@ -0,0 +1,364 @@
+package invertedIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Binary index format that loads much faster than the text format written
+ * by {@link Index5#store(String)}. Posting lists are stored as
+ * variable-byte docId gaps, terms are grouped in blocks that are decoded in
+ * parallel. Every block carries a CRC32 that is checked when the block is
+ * decoded, so a torn or corrupted file is detected without a separate pass.
+ *
+ * File layout (version 3):
+ * <pre>
+ *   MAGIC VERSION
+ *   sources  the document table, as written by DocTable.write
+ *   block*   termCount, (term, doc_freq, term_freq, postingCount, (gap, dtf)*)*
+ *   table    blockCount, (offset long, length int, crc int)*   sources block first
+ *   footer   tableOffset long, tableCrc int, MAGIC int
+ * </pre>
+ * Strings are a variable-byte length followed by UTF-8 bytes. Files of an
+ * older version are rejected; convert them again from the text index. The
+ * header, footer, table, sources and every term block are mapped
+ * separately at long offsets, so files over 2 GB load as long as no single
+ * block is that large.
+ *
+ * Run as a program to convert a text index: BinaryIndex textIndex binaryIndex
+ */
+public class BinaryIndex {
+
+    static final int MAGIC = 0x49354249; // "I5BI"
+    static final int VERSION = 3;
+    static final int TERMS_PER_BLOCK = 4096;
+
+    //---------------------------------------------
+    /**
+     * Writes an index in the binary format.
+     * @param ix The index.
+     * @param path The file to write.
+     */
+    public static void write(Index5 ix, String path) throws IOException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(path), 1 << 16)) {
+            write(ix, os);
+        }
+    }
+
+    /**
+     * Writes an index in the binary format to a stream, holding the read
+     * lock of the index so that updates wait until it is written.
+     * @param ix The index.
+     * @param os The stream, left open.
+     * @return The offset, length and CRC32 of every block, as written in the table.
+     */
+    static List<long[]> write(Index5 ix, OutputStream os) throws IOException {
+        ix.lock.readLock().lock();
+        try {
+            return writeLocked(ix, os);
+        } finally {
+            ix.lock.readLock().unlock();
+        }
+    }
+
+    static List<long[]> writeLocked(Index5 ix, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        Encoder block = new Encoder();
+        block.writeInt(MAGIC);
+        block.writeInt(VERSION);
+        DataOutputStream table0 = new DataOutputStream(block);
+        ix.sources.write(table0);
+        table0.flush();
+        List<long[]> table = new ArrayList<long[]>();
+        table.add(new long[]{8, block.size() - 8, block.crc(8)});
+        long offset = block.size();
+        block.writeTo(out);
+
+        List<Map.Entry<String, DictEntry>> entries = new ArrayList<Map.Entry<String, DictEntry>>(ix.index.entrySet());
+        for (int b = 0; b < entries.size(); b += TERMS_PER_BLOCK) {
+            block.reset();
+            int end = Math.min(entries.size(), b + TERMS_PER_BLOCK);
+            block.writeVInt(end - b);
+            for (int i = b; i < end; i++) {
+                DictEntry e = entries.get(i).getValue();
+                block.writeString(entries.get(i).getKey());
+                block.writeVInt(e.doc_freq);
+                block.writeVInt(e.term_freq);
+                Posting head = e.postings();
+                block.writeVInt(Index5.postingLength(head));
+                int prev = 0;
+                for (Posting p = head; p != null; p = p.next) {
+                    block.writeVInt(p.docId - prev);
+                    block.writeVInt(p.dtf);
+                    prev = p.docId;
+                }
+            }
+            table.add(new long[]{offset, block.size(), block.crc(0)});
+            offset += block.size();
+            block.writeTo(out);
+        }
+
+        long tableOffset = offset;
+        block.reset();
+        block.writeInt(table.size());
+        for (long[] t : table) {
+            block.writeLong(t[0]);
+            block.writeInt((int) t[1]);
+            block.writeInt((int) t[2]);
+        }
+        int tableCrc = (int) block.crc(0);
+        block.writeTo(out);
+        out.writeLong(tableOffset);
+        out.writeInt(tableCrc);
+        out.writeInt(MAGIC);
+        out.flush();
+        return table;
+    }
+
+    //---------------------------------------------
+    /**
+     * Loads an index in the binary format, decoding term blocks in parallel.
+     * The content is replaced under the write lock of the index, see
+     * Index5.replace.
+     * @param ix The index to fill, its content is replaced.
+     * @param path The file to read.
+     * @param threads The number of decoder threads.
+     */
+    public static void load(Index5 ix, String path, int threads) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            load(ix, ch, path, threads);
+        }
+    }
+
+    static void load(Index5 ix, FileChannel ch, String path, int threads) throws IOException {
+        long size = ch.size();
+        if (size < 24) {
+            throw new IOException(path + " is not a binary index");
+        }
+        ByteBuffer head = map(ch, 0, 8);
+        ByteBuffer tail = map(ch, size - 16, 16);
+        if (head.getInt(0) != MAGIC || tail.getInt(12) != MAGIC) {
+            throw new IOException(path + " is not a binary index");
+        }
+        int version = head.getInt(4);
+        if (version != VERSION) {
+            throw new IOException(path + " has unsupported version " + version + ", convert it again from the text index");
+        }
+        long tableOffset = tail.getLong(0);
+        if (tableOffset < 8 || tableOffset > size - 20 || size - tableOffset > Integer.MAX_VALUE) {
+            throw new IOException(path + " has a corrupt footer");
+        }
+        ByteBuffer tb = map(ch, tableOffset, size - tableOffset);
+        int blocks = tb.getInt(0);
+        if (blocks < 1 || 4L + (long) blocks * 16 > tb.limit()) {
+            throw new IOException(path + " has a corrupt block table");
+        }
+        if (crc(tb, 0, 4 + blocks * 16) != tail.getInt(8)) {
+            throw new IOException(path + ": checksum mismatch in block table");
+        }
+        long[][] table = new long[blocks][];
+        for (int b = 0; b < blocks; b++) {
+            int t = 4 + b * 16;
+            table[b] = new long[]{tb.getLong(t), tb.getInt(t + 8), tb.getInt(t + 12)};
+            if (table[b][0] < 8 || table[b][1] < 0 || table[b][0] + table[b][1] > tableOffset) {
+                throw new IOException(path + ": block " + b + " lies outside the file");
+            }
+        }
+
+        // block 0 is the document table, right after the header
+        long sourcesEnd = table[0][0] + table[0][1];
+        if (sourcesEnd > Integer.MAX_VALUE) {
+            throw new IOException(path + ": the document table is larger than 2 GB");
+        }
+        ByteBuffer sb = map(ch, 0, sourcesEnd);
+        verify(sb.slice(8, (int) table[0][1]), table[0], path, 0);
+        DocTable sources = DocTable.read(sb, 8, ix.sources.offHeap);
+
+        ConcurrentHashMap<String, DictEntry> dict = new ConcurrentHashMap<String, DictEntry>();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<?>> parts = new ArrayList<Future<?>>();
+            for (int b = 1; b < table.length; b++) {
+                long[] t = table[b];
+                int blockNo = b;
+                parts.add(pool.submit(() -> {
+                    ByteBuffer buf = map(ch, t[0], t[1]);
+                    verify(buf, t, path, blockNo);
+                    decodeBlock(new Decoder(buf, 0), dict);
+                    return null;
+                }));
+            }
+            for (Future<?> f : parts) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Corrupt term block: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        ix.replace(sources, new HashMap<String, DictEntry>(dict));
+    }
+
+    static ByteBuffer map(FileChannel ch, long offset, long length) throws IOException {
+        return ch.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    static long crc(ByteBuffer buf, int offset, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer b = buf.duplicate();
+        b.limit(offset + length).position(offset);
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Checks the CRC32 of a block.
+     * @param buf The bytes of the block only.
+     */
+    static void verify(ByteBuffer buf, long[] block, String path, int b) throws IOException {
+        if (crc(buf, 0, buf.limit()) != (int) block[2]) {
+            throw new IOException(path + ": checksum mismatch in block " + b);
+        }
+    }
+
+    static void decodeBlock(Decoder d, Map<String, DictEntry> dict) {
+        int terms = d.readVInt();
+        for (int i = 0; i < terms; i++) {
+            String term = d.readString();
+            DictEntry e = new DictEntry(d.readVInt(), d.readVInt());
+            int n = d.readVInt();
+            int docId = 0;
+            for (int k = 0; k < n; k++) {
+                docId += d.readVInt();
+                Posting p = new Posting(docId, d.readVInt());
+                if (e.pList == null) {
+                    e.pList = p;
+                } else {
+                    e.last.next = p;
+                }
+                e.last = p;
+            }
+            dict.put(term, e);
+        }
+    }
+
+    //---------------------------------------------
+    /**
+     * Converts an index from the text format to the binary format.
+     * Usage: BinaryIndex textIndex binaryIndex
+     */
+    public static void main(String args[]) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: BinaryIndex textIndex binaryIndex");
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        Index5 ix = new Index5();
+        long t0 = System.currentTimeMillis();
+        IndexLoader.load(ix, args[0], threads);
+        long t1 = System.currentTimeMillis();
+        write(ix, args[1]);
+        long t2 = System.currentTimeMillis();
+        System.out.println("Loaded " + ix.sources.size() + " documents and " + ix.index.size() + " terms in "
+                + (t1 - t0) + " ms, wrote " + args[1] + " in " + (t2 - t1) + " ms");
+    }
+
+    //---------------------------------------------
+    /**
+     * Growable byte buffer with variable-byte integers.
+     */
+    static class Encoder extends ByteArrayOutputStream {
+
+        Encoder() {
+            super(1 << 16);
+        }
+
+        void writeVInt(int v) {
+            while ((v & ~0x7F) != 0) {
+                write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            write(v);
+        }
+
+        void writeInt(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        long crc(int from) {
+            CRC32 crc = new CRC32();
+            crc.update(buf, from, count - from);
+            return (int) crc.getValue();
+        }
+
+        void writeString(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeVInt(b.length);
+            write(b, 0, b.length);
+        }
+    }
+
+    /**
+     * Reads variable-byte integers and strings from a buffer.
+     */
+    static class Decoder {
+        ByteBuffer buf;
+        int pos;
+
+        Decoder(ByteBuffer b, int p) {
+            buf = b;
+            pos = p;
+        }
+
+        int readVInt() {
+            int v = 0;
+            int shift = 0;
+            byte b;
+            while ((b = buf.get(pos++)) < 0) {
+                v |= (b & 0x7F) << shift;
+                shift += 7;
+            }
+            return v | (b << shift);
+        }
+
+        String readString() {
+            int n = readVInt();
+            byte[] b = new byte[n];
+            buf.get(pos, b, 0, n);
+            pos += n;
+            return new String(b, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package invertedIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the effect of bitmap postings on a synthetic corpus with a
+ * skewed (Zipf) term distribution, for several bitmap thresholds. The
+ * bitmaps are an extra index next to the stored postings, so their size is
+ * reported against the size of the stored postings.
+ *
+ * Usage: BitmapBenchmark [documents] [vocabulary] [wordsPerDocument]
+ */
+public class BitmapBenchmark {
+
+    public static void main(String args[]) {
+        int docs = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int vocab = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        int words = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        Index5 index = new Index5();
+        Random rnd = new Random(7);
+        double[] cdf = zipf(vocab, 1.0);
+        long t0 = System.currentTimeMillis();
+        StringBuilder ln = new StringBuilder();
+        for (int d = 0; d < docs; d++) {
+            ln.setLength(0);
+            for (int w = 0; w < words; w++) {
+                int t = Arrays.binarySearch(cdf, rnd.nextDouble());
+                ln.append("t").append(t < 0 ? -t - 1 : t).append(' ');
+            }
+            index.sources.add(d, "doc" + d, "doc" + d);
+            index.sources.setLength(d, index.indexOneLine(ln.toString(), d));
+        }
+        System.out.println("Indexed " + docs + " documents, " + index.index.size() + " terms in "
+                + (System.currentTimeMillis() - t0) + " ms");
+
+        // queries mixing one frequent term with terms of decreasing frequency
+        List<List<String>> queries = new ArrayList<List<String>>();
+        for (int q = 0; q < 300; q++) {
+            List<String> terms = new ArrayList<String>();
+            terms.add("t" + rnd.nextInt(10));
+            terms.add("t" + rnd.nextInt(q % 3 == 0 ? 10 : 200));
+            terms.add("t" + rnd.nextInt(q % 2 == 0 ? 50 : 5000));
+            queries.add(index.queryTerms(String.join(" ", terms)));
+        }
+
+        System.out.println("threshold  bitmaps  bitmapKB  postingsKB  extra  AND us/query  OR us/query");
+        for (double threshold : new double[]{2, 0.5, 0.1, 1.0 / 16, 0.01}) {
+            index.setBitmapThreshold(threshold);
+            index.finalizeIndex();
+            long bytes = 0;
+            long stored = 0;
+            int bitmaps = 0;
+            for (DictEntry e : index.index.values()) {
+                if (e.bitmap != null) {
+                    bytes += e.bitmap.sizeInBytes();
+                    bitmaps++;
+                }
+                // packed lists by their size, linked lists at 24 bytes a Posting object
+                stored += e.packed != null ? e.packed.sizeInBytes() : 24L * e.doc_freq;
+            }
+            double and = time(queries, q -> index.and(q));
+            double or = time(queries, q -> index.or(q));
+            System.out.printf("%9s  %7d  %8d  %10d  %4.0f%%  %12.1f  %11.1f%n",
+                    threshold > 1 ? "off" : String.format("%.4f", threshold),
+                    bitmaps, bytes / 1024, stored / 1024, 100.0 * bytes / stored, and, or);
+        }
+    }
+
+    interface Query {
+        Posting run(List<String> terms);
+    }
+
+    static double time(List<List<String>> queries, Query query) {
+        long sink = 0;
+        for (int r = 0; r < 3; r++) { // warm up
+            for (List<String> q : queries) {
+                sink += Index5.postingLength(query.run(q));
+            }
+        }
+        int rounds = 5;
+        long t0 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (List<String> q : queries) {
+                sink += Index5.postingLength(query.run(q));
+            }
+        }
+        double us = (System.nanoTime() - t0) / 1e3 / (rounds * queries.size());
+        return sink == -1 ? 0 : us;
+    }
+
+    static double[] zipf(int n, double s) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, s);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+        return cdf;
+    }
+}
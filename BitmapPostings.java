@@ -0,0 +1,378 @@
+package invertedIndex;
+
+import java.util.Arrays;
+
+/**
+ * Compressed bitmap of docIds in the style of Roaring bitmaps. DocIds are
+ * grouped by their high 16 bits; a group with at most 4096 docIds is kept as
+ * a sorted array of the low 16 bits, a fuller group as a 65536-bit bitmap.
+ * Intersections and unions of two bitmap groups work on 64-bit words, an
+ * array group is probed against a bitmap group.
+ *
+ * Index5 gives terms that occur in a large fraction of the documents a
+ * BitmapPostings in addition to their stored postings (packed or linked).
+ * It holds docIds only, no dtf values, so it cannot replace them: it is an
+ * extra index for AND and OR and costs memory on top of the postings.
+ */
+public class BitmapPostings {
+
+    static final int ARRAY_MAX = 4096; // above this an array group becomes a bitmap
+    static final int WORDS = 1024;     // 65536 bits
+
+    int size = 0;          // number of groups
+    int[] keys = new int[4];
+    char[][] arrays = new char[4][];   // sorted low bits, or null
+    int[] arraySizes = new int[4];
+    long[][] bitmaps = new long[4][];  // or the bitmap of the group
+    int[] bitmapCounts = new int[4];
+
+    public BitmapPostings() {
+    }
+
+    /**
+     * Builds the bitmap of a posting list.
+     * @param p The head of a posting list in increasing docId order.
+     */
+    public BitmapPostings(Posting p) {
+        while (p != null) {
+            add(p.docId);
+            p = p.next;
+        }
+    }
+
+    //---------------------------------------------
+    int find(int key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    int group(int key) {
+        int g = find(key);
+        if (g >= 0) {
+            return g;
+        }
+        g = -g - 1;
+        if (size == keys.length) {
+            int n = size * 2;
+            keys = Arrays.copyOf(keys, n);
+            arrays = Arrays.copyOf(arrays, n);
+            arraySizes = Arrays.copyOf(arraySizes, n);
+            bitmaps = Arrays.copyOf(bitmaps, n);
+            bitmapCounts = Arrays.copyOf(bitmapCounts, n);
+        }
+        int move = size - g;
+        System.arraycopy(keys, g, keys, g + 1, move);
+        System.arraycopy(arrays, g, arrays, g + 1, move);
+        System.arraycopy(arraySizes, g, arraySizes, g + 1, move);
+        System.arraycopy(bitmaps, g, bitmaps, g + 1, move);
+        System.arraycopy(bitmapCounts, g, bitmapCounts, g + 1, move);
+        keys[g] = key;
+        arrays[g] = new char[4];
+        arraySizes[g] = 0;
+        bitmaps[g] = null;
+        bitmapCounts[g] = 0;
+        size++;
+        return g;
+    }
+
+    /**
+     * Adds a docId.
+     * @param docId A non-negative document ID.
+     */
+    public void add(int docId) {
+        int g = group(docId >>> 16);
+        char low = (char) docId;
+        if (bitmaps[g] != null) {
+            long[] w = bitmaps[g];
+            long bit = 1L << low;
+            if ((w[low >>> 6] & bit) == 0) {
+                w[low >>> 6] |= bit;
+                bitmapCounts[g]++;
+            }
+            return;
+        }
+        char[] a = arrays[g];
+        int n = arraySizes[g];
+        int i = n > 0 && a[n - 1] < low ? -n - 1 : Arrays.binarySearch(a, 0, n, low); // appends are the usual case
+        if (i >= 0) {
+            return;
+        }
+        i = -i - 1;
+        if (n == ARRAY_MAX) {
+            toBitmap(g);
+            add(docId);
+            return;
+        }
+        if (n == a.length) {
+            a = arrays[g] = Arrays.copyOf(a, Math.min(ARRAY_MAX, n * 2));
+        }
+        System.arraycopy(a, i, a, i + 1, n - i);
+        a[i] = low;
+        arraySizes[g] = n + 1;
+    }
+
+    void toBitmap(int g) {
+        long[] w = new long[WORDS];
+        for (int i = 0; i < arraySizes[g]; i++) {
+            char v = arrays[g][i];
+            w[v >>> 6] |= 1L << v;
+        }
+        bitmaps[g] = w;
+        bitmapCounts[g] = arraySizes[g];
+        arrays[g] = null;
+        arraySizes[g] = 0;
+    }
+
+    /**
+     * @param docId A document ID.
+     * @return True if the docId is in the bitmap.
+     */
+    public boolean contains(int docId) {
+        int g = find(docId >>> 16);
+        if (g < 0) {
+            return false;
+        }
+        char low = (char) docId;
+        if (bitmaps[g] != null) {
+            return (bitmaps[g][low >>> 6] & (1L << low)) != 0;
+        }
+        return Arrays.binarySearch(arrays[g], 0, arraySizes[g], low) >= 0;
+    }
+
+    /**
+     * @return The number of docIds in the bitmap.
+     */
+    public int cardinality() {
+        int n = 0;
+        for (int g = 0; g < size; g++) {
+            n += bitmaps[g] != null ? bitmapCounts[g] : arraySizes[g];
+        }
+        return n;
+    }
+
+    /**
+     * @return The approximate memory used by the groups, in bytes.
+     */
+    public long sizeInBytes() {
+        long bytes = 16L * keys.length;
+        for (int g = 0; g < size; g++) {
+            bytes += bitmaps[g] != null ? 8L * WORDS + 16 : 2L * arrays[g].length + 16;
+        }
+        return bytes;
+    }
+
+    //---------------------------------------------
+    /**
+     * Intersects two bitmaps group by group.
+     * @param o The other bitmap.
+     * @return A new bitmap of the docIds in both.
+     */
+    public BitmapPostings and(BitmapPostings o) {
+        BitmapPostings r = new BitmapPostings();
+        int i = 0;
+        int j = 0;
+        while (i < size && j < o.size) {
+            if (keys[i] < o.keys[j]) {
+                i++;
+            } else if (keys[i] > o.keys[j]) {
+                j++;
+            } else {
+                int base = keys[i] << 16;
+                if (bitmaps[i] != null && o.bitmaps[j] != null) {
+                    long[] a = bitmaps[i];
+                    long[] b = o.bitmaps[j];
+                    long[] w = new long[WORDS];
+                    int count = 0;
+                    for (int k = 0; k < WORDS; k++) {
+                        w[k] = a[k] & b[k];
+                        count += Long.bitCount(w[k]);
+                    }
+                    r.putGroup(keys[i], w, count);
+                } else if (bitmaps[i] != null || o.bitmaps[j] != null) {
+                    // probe the array group against the bitmap group
+                    BitmapPostings arr = bitmaps[i] != null ? o : this;
+                    int ga = bitmaps[i] != null ? j : i;
+                    long[] w = bitmaps[i] != null ? bitmaps[i] : o.bitmaps[j];
+                    for (int k = 0; k < arr.arraySizes[ga]; k++) {
+                        char v = arr.arrays[ga][k];
+                        if ((w[v >>> 6] & (1L << v)) != 0) {
+                            r.add(base | v);
+                        }
+                    }
+                } else {
+                    char[] a = arrays[i];
+                    char[] b = o.arrays[j];
+                    int x = 0;
+                    int y = 0;
+                    while (x < arraySizes[i] && y < o.arraySizes[j]) {
+                        if (a[x] < b[y]) {
+                            x++;
+                        } else if (a[x] > b[y]) {
+                            y++;
+                        } else {
+                            r.add(base | a[x]);
+                            x++;
+                            y++;
+                        }
+                    }
+                }
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Unites two bitmaps group by group.
+     * @param o The other bitmap.
+     * @return A new bitmap of the docIds in either.
+     */
+    public BitmapPostings or(BitmapPostings o) {
+        BitmapPostings r = copy();
+        for (int j = 0; j < o.size; j++) {
+            int g = r.find(o.keys[j]);
+            if (g >= 0 && r.bitmaps[g] != null && o.bitmaps[j] != null) {
+                long[] w = r.bitmaps[g];
+                long[] b = o.bitmaps[j];
+                int count = 0;
+                for (int k = 0; k < WORDS; k++) {
+                    w[k] |= b[k];
+                    count += Long.bitCount(w[k]);
+                }
+                r.bitmapCounts[g] = count;
+            } else {
+                int base = o.keys[j] << 16;
+                if (o.bitmaps[j] != null) {
+                    long[] b = o.bitmaps[j];
+                    for (int k = 0; k < WORDS; k++) {
+                        for (long bits = b[k]; bits != 0; bits &= bits - 1) {
+                            r.add(base | (k << 6) | Long.numberOfTrailingZeros(bits));
+                        }
+                    }
+                } else {
+                    for (int k = 0; k < o.arraySizes[j]; k++) {
+                        r.add(base | o.arrays[j][k]);
+                    }
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Adds every docId of a posting list.
+     * @param p The head of a posting list.
+     * @return A new bitmap of the docIds in this bitmap or in the list.
+     */
+    public BitmapPostings or(Posting p) {
+        BitmapPostings r = copy();
+        while (p != null) {
+            r.add(p.docId);
+            p = p.next;
+        }
+        return r;
+    }
+
+    /**
+     * Keeps the postings of a sparse list whose docId is in this bitmap.
+     * @param p The head of a posting list.
+     * @param step Receives the probes made, may be null.
+     * @return A new posting list of the docIds in both.
+     */
+    public Posting filter(Posting p, QueryExplain.Step step) {
+        Posting answer = null;
+        Posting last = null;
+        long probes = 0;
+        long misses = 0;
+        while (p != null) {
+            probes++;
+            if (contains(p.docId)) {
+                Posting n = new Posting(p.docId);
+                if (answer == null) {
+                    answer = n;
+                } else {
+                    last.next = n;
+                }
+                last = n;
+            } else {
+                misses++;
+            }
+            p = p.next;
+        }
+        if (step != null) {
+            step.scanned += probes;
+            step.skipped += misses;
+        }
+        return answer;
+    }
+
+    /**
+     * @return The docIds as a posting list in increasing order.
+     */
+    public Posting toPostings() {
+        Posting answer = null;
+        Posting last = null;
+        for (int g = 0; g < size; g++) {
+            int base = keys[g] << 16;
+            if (bitmaps[g] != null) {
+                long[] w = bitmaps[g];
+                for (int k = 0; k < WORDS; k++) {
+                    for (long bits = w[k]; bits != 0; bits &= bits - 1) {
+                        Posting n = new Posting(base | (k << 6) | Long.numberOfTrailingZeros(bits));
+                        if (answer == null) {
+                            answer = n;
+                        } else {
+                            last.next = n;
+                        }
+                        last = n;
+                    }
+                }
+            } else {
+                for (int k = 0; k < arraySizes[g]; k++) {
+                    Posting n = new Posting(base | arrays[g][k]);
+                    if (answer == null) {
+                        answer = n;
+                    } else {
+                        last.next = n;
+                    }
+                    last = n;
+                }
+            }
+        }
+        return answer;
+    }
+
+    void putGroup(int key, long[] w, int count) {
+        if (count == 0) {
+            return;
+        }
+        int g = group(key);
+        if (count <= ARRAY_MAX) {
+            for (int k = 0; k < WORDS; k++) {
+                for (long bits = w[k]; bits != 0; bits &= bits - 1) {
+                    add((key << 16) | (k << 6) | Long.numberOfTrailingZeros(bits));
+                }
+            }
+        } else {
+            arrays[g] = null;
+            arraySizes[g] = 0;
+            bitmaps[g] = w;
+            bitmapCounts[g] = count;
+        }
+    }
+
+    BitmapPostings copy() {
+        BitmapPostings r = new BitmapPostings();
+        r.size = size;
+        r.keys = Arrays.copyOf(keys, Math.max(4, size));
+        r.arrays = new char[r.keys.length][];
+        r.arraySizes = Arrays.copyOf(arraySizes, r.keys.length);
+        r.bitmaps = new long[r.keys.length][];
+        r.bitmapCounts = Arrays.copyOf(bitmapCounts, r.keys.length);
+        for (int g = 0; g < size; g++) {
+            r.arrays[g] = arrays[g] == null ? null : arrays[g].clone();
+            r.bitmaps[g] = bitmaps[g] == null ? null : bitmaps[g].clone();
+        }
+        return r;
+    }
+}
@@ -0,0 +1,330 @@
+package invertedIndex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Auxiliary index over pairs of adjacent terms, as produced by
+ * indexOneLine (stop words removed). The pairs are built when the index is
+ * built, loaded or gets the pair index: the terms whose doc_freq reaches
+ * minDfFraction of the collection become the hot terms, then the text of
+ * every document is read once, from the document store or else from its
+ * file, and only pairs involving a hot term are recorded. The texts are read
+ * without holding a lock of the index, so queries and updates keep running;
+ * the pairs are installed under the write lock. Documents indexed later add
+ * their pairs as they are indexed. A phrase query then intersects the short
+ * pair lists first and verifies word positions only for the documents left.
+ *
+ * The hot terms are fixed when the pairs are built, so the kept pair lists
+ * are complete; a term that becomes frequent later is only accelerated
+ * after a rebuild. Until the pairs are built for the current dictionary,
+ * phrase queries use the term lists only. If the text of a document cannot
+ * be read, the pair lists are incomplete and are not used.
+ */
+public class BiwordIndex {
+
+    /**
+     * Extra index size against phrase latency.
+     */
+    public static class Report {
+        public int pairs;
+        public long pairPostings;
+        public long pairBytes;        // pair postings as variable-byte gaps
+        public long termBytes;        // the main postings, for comparison
+        public double microsWith;     // average phrase latency using pairs
+        public double microsWithout;  // average phrase latency using terms only
+        public int phrases;
+
+        @Override
+        public String toString() {
+            return String.format("Biword index: %d pairs, %d postings, %d bytes (%.1f%% of %d bytes of term postings)%n"
+                    + "  phrase latency: %.2f us with pairs, %.2f us without, over %d phrases%n",
+                    pairs, pairPostings, pairBytes, termBytes == 0 ? 0.0 : 100.0 * pairBytes / termBytes, termBytes,
+                    microsWith, microsWithout, phrases);
+        }
+    }
+
+    public double minDfFraction = 0.05; // a term in this fraction of the documents is hot
+    public boolean requireBoth = false; // keep pairs of two hot terms only
+
+    HashMap<String, DictEntry> pairs = new HashMap<String, DictEntry>();
+    Set<String> hot = null;             // fixed by build, no pairs are recorded before
+    Map<String, DictEntry> builtFor = null; // the dictionary the pairs were built for
+    boolean complete = false;           // every document's pairs were recorded
+    boolean enabled = true;             // false to evaluate phrases without pairs
+
+    static String key(String t1, String t2) {
+        return t1 + " " + t2;
+    }
+
+    //---------------------------------------------
+    /**
+     * Records that t2 follows t1 in a document, if the pair involves a hot
+     * term. Nothing is recorded before the pairs are built.
+     */
+    void add(String t1, String t2, int fid) {
+        if (hot != null) {
+            add(pairs, hot, t1, t2, fid);
+        }
+    }
+
+    void add(Map<String, DictEntry> into, Set<String> h, String t1, String t2, int fid) {
+        if (!keep(h, t1, t2)) {
+            return;
+        }
+        String k = key(t1, t2);
+        DictEntry entry = into.get(k);
+        if (entry == null) {
+            entry = new DictEntry();
+            into.put(k, entry);
+        }
+        if (entry.last == null || entry.last.docId != fid) {
+            entry.addPosting(fid);
+            entry.doc_freq++;
+        } else {
+            entry.last.dtf++;
+        }
+        entry.term_freq++;
+    }
+
+    boolean keep(Set<String> h, String t1, String t2) {
+        return requireBoth ? h.contains(t1) && h.contains(t2) : h.contains(t1) || h.contains(t2);
+    }
+
+    /**
+     * Records the pairs of one document text.
+     * @return False if the text is missing.
+     */
+    boolean addText(Index5 ix, Map<String, DictEntry> into, Set<String> h, String text, int fid) {
+        if (text == null) {
+            return false;
+        }
+        String prev = null;
+        for (String t : ix.phraseTerms(text)) {
+            if (prev != null) {
+                add(into, h, prev, t, fid);
+            }
+            prev = t;
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the pairs were built for the current dictionary of the index.
+     */
+    boolean builtFor(Index5 ix) {
+        return builtFor == ix.index;
+    }
+
+    /**
+     * Fixes the hot terms from the doc_freq of the index, then reads the
+     * text of every document and records the pairs that involve a hot term.
+     * The terms and documents are taken under the read lock and the texts
+     * are read without a lock. Under the write lock, the documents removed
+     * meanwhile are dropped, the few documents added meanwhile are read, and
+     * the pairs are installed. If the documents were renumbered meanwhile
+     * the texts are read again; if the dictionary was replaced, its new
+     * owner builds the pairs. Must not be called while holding a lock of
+     * the index.
+     * @param ix The index the pairs belong to.
+     */
+    void build(Index5 ix) {
+        while (true) {
+            Set<String> h = new HashSet<String>();
+            Map<String, DictEntry> dict;
+            int renumbered;
+            DocStore store;
+            List<Integer> ids = new ArrayList<Integer>();
+            List<String> urls = new ArrayList<String>();
+            ix.lock.readLock().lock();
+            try {
+                dict = ix.index;
+                renumbered = ix.renumbered;
+                store = ix.docStore;
+                double min = Math.max(2, minDfFraction * ix.sources.size());
+                for (Map.Entry<String, DictEntry> e : dict.entrySet()) {
+                    if (e.getValue().doc_freq >= min) {
+                        h.add(e.getKey());
+                    }
+                }
+                for (int d = ix.sources.first(); d >= 0; d = ix.sources.next(d)) {
+                    ids.add(d);
+                    urls.add(ix.sources.url(d));
+                }
+            } finally {
+                ix.lock.readLock().unlock();
+            }
+
+            HashMap<String, DictEntry> p = new HashMap<String, DictEntry>();
+            int missing = 0;
+            for (int i = 0; i < ids.size(); i++) {
+                if (!addText(ix, p, h, Index5.documentText(store, ids.get(i), urls.get(i)), ids.get(i))) {
+                    missing++;
+                }
+            }
+
+            ix.lock.writeLock().lock();
+            try {
+                if (ix.index != dict) {
+                    return;
+                }
+                if (ix.renumbered != renumbered) {
+                    continue;
+                }
+                for (int d : ids) {
+                    if (!ix.sources.contains(d)) {
+                        removeDocument(p, d);
+                    }
+                }
+                int last = ids.isEmpty() ? -1 : ids.get(ids.size() - 1);
+                for (int d = ix.sources.next(last); d >= 0; d = ix.sources.next(d)) {
+                    if (!addText(ix, p, h, ix.documentText(d), d)) {
+                        missing++;
+                    }
+                }
+                hot = h;
+                pairs = p;
+                complete = missing == 0;
+                builtFor = dict;
+            } finally {
+                ix.lock.writeLock().unlock();
+            }
+            if (missing > 0) {
+                System.out.println("Cannot read the text of " + missing + " documents, phrase queries do not use the biword index");
+            }
+            return;
+        }
+    }
+
+    /**
+     * Renumbers the pair lists after the documents got new docIds.
+     * @param newIds Old docId to new docId.
+     */
+    void remap(Map<Integer, Integer> newIds) {
+        for (DictEntry e : pairs.values()) {
+            DocIdReorderer.remapPostings(e, newIds);
+        }
+    }
+
+    /**
+     * @return True if the pair list of t1 t2 is kept and complete.
+     */
+    boolean covers(String t1, String t2) {
+        return enabled && complete && hot != null && keep(hot, t1, t2);
+    }
+
+    /**
+     * @return The posting list of a covered pair, null if no document has it.
+     */
+    Posting postings(String t1, String t2) {
+        DictEntry entry = pairs.get(key(t1, t2));
+        return entry == null ? null : entry.pList;
+    }
+
+    int docFreq(String t1, String t2) {
+        DictEntry entry = pairs.get(key(t1, t2));
+        return entry == null ? 0 : entry.doc_freq;
+    }
+
+    /**
+     * Removes a document from every pair list.
+     */
+    void removeDocument(int fid) {
+        removeDocument(pairs, fid);
+    }
+
+    static void removeDocument(Map<String, DictEntry> from, int fid) {
+        Iterator<DictEntry> it = from.values().iterator();
+        while (it.hasNext()) {
+            DictEntry entry = it.next();
+            Posting prev = null;
+            Posting p = entry.pList;
+            while (p != null && p.docId < fid) {
+                prev = p;
+                p = p.next;
+            }
+            if (p == null || p.docId != fid) {
+                continue;
+            }
+            if (prev == null) {
+                entry.pList = p.next;
+            } else {
+                prev.next = p.next;
+            }
+            if (entry.last == p) {
+                entry.last = prev;
+            }
+            entry.doc_freq--;
+            entry.term_freq -= p.dtf;
+            if (entry.pList == null) {
+                it.remove();
+            }
+        }
+    }
+
+    //---------------------------------------------
+    /**
+     * Measures the size of the pair lists and the phrase latency with and
+     * without them.
+     * @param ix The index the pairs belong to.
+     * @param phrases The phrase queries to time.
+     * @return The report.
+     */
+    public Report measure(Index5 ix, List<String> phrases) {
+        Report r = new Report();
+        r.pairs = pairs.size();
+        for (DictEntry e : pairs.values()) {
+            r.pairPostings += e.doc_freq;
+        }
+        r.pairBytes = bytes(pairs);
+        r.termBytes = bytes(ix.index);
+        r.phrases = phrases.size();
+        boolean was = enabled;
+        enabled = false;
+        r.microsWithout = time(ix, phrases);
+        enabled = true;
+        r.microsWith = time(ix, phrases);
+        enabled = was;
+        return r;
+    }
+
+    static long bytes(Map<String, DictEntry> dict) {
+        long bytes = 0;
+        for (DictEntry e : dict.values()) {
+            int prev = -1;
+            for (Posting p = e.pList; p != null; p = p.next) {
+                bytes += DocIdReorderer.vbyteLength(prev < 0 ? p.docId : p.docId - prev) + DocIdReorderer.vbyteLength(p.dtf);
+                prev = p.docId;
+            }
+        }
+        return bytes;
+    }
+
+    static double time(Index5 ix, List<String> phrases) {
+        if (phrases.isEmpty()) {
+            return 0;
+        }
+        List<List<String>> parsed = new ArrayList<List<String>>();
+        for (String ph : phrases) {
+            parsed.add(ix.phraseTerms(ph));
+        }
+        int rounds = 5;
+        for (int r = 0; r < rounds; r++) { // warm up
+            for (List<String> q : parsed) {
+                ix.phrase(q);
+            }
+        }
+        long t0 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (List<String> q : parsed) {
+                ix.phrase(q);
+            }
+        }
+        return (System.nanoTime() - t0) / 1e3 / (rounds * parsed.size());
+    }
+}
@@ -0,0 +1,42 @@
+package invertedIndex;
+
+/**
+ * Decodes one block of {@link PackedPostings}: 128 values bit-packed in
+ * four interleaved lanes, value i in lane i % 4. With b bits per value,
+ * word w of lane l is words[offset + 4 * w + l] and every lane takes b
+ * words, so four values are unpacked with one shift and mask of a 128-bit
+ * vector.
+ *
+ * PackedPostings picks the implementation once, at class load:
+ * VectorBlockDecoder (vector/VectorBlockDecoder.java) when it was compiled
+ * and jdk.incubator.vector is available, otherwise
+ * {@link ScalarBlockDecoder}. Both give identical results.
+ */
+public interface BlockDecoder {
+
+    /**
+     * Unpacks 128 values.
+     * @param words The packed words.
+     * @param offset The first word of the block.
+     * @param bits The number of bits per value, 0 to 32.
+     * @param out Receives the 128 values.
+     */
+    void unpack(int[] words, int offset, int bits, int[] out);
+
+    /**
+     * Unpacks 128 docId deltas and adds them up. Every delta is taken from
+     * the docId four positions earlier, the first four from base, so the
+     * prefix sum of four values is one vector addition.
+     * @param words The packed words.
+     * @param offset The first word of the block.
+     * @param bits The number of bits per delta, 0 to 32.
+     * @param base The last docId of the previous block, 0 for the first block.
+     * @param out Receives the 128 docIds.
+     */
+    void decode(int[] words, int offset, int bits, int base, int[] out);
+
+    /**
+     * @return A short name, printed by PackedBenchmark.
+     */
+    String name();
+}
@@ -0,0 +1,580 @@
+package invertedIndex;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Finds the documents of a collection: walks one or more directory trees
+ * in parallel (one fork/join task per directory), keeps the regular files
+ * that match the include globs, no exclude glob and the size limits, and
+ * gives every file a docId.
+ *
+ * Globs are matched against the path relative to its root, for example
+ * "**.txt" or "drafts/**". A directory matching an exclude glob is not
+ * entered. Symbolic links are not followed.
+ *
+ * The documents are streamed while the walk runs, so indexing starts with
+ * the first file instead of after the whole tree was listed. Every
+ * directory is listed sorted by name and the files are given out depth
+ * first in that order, so the docIds do not depend on the order the
+ * filesystem lists entries or the tasks run in. Without a docId map the
+ * files are numbered 0, 1, ... in this path order. With a docId map
+ * (setDocIdMap) the known paths that still pass the filters come first with
+ * the docId they got in an earlier scan, then new paths get docIds after
+ * the largest one ever given, in path order, and the docIds of files that
+ * disappeared are not reused.
+ */
+public class CollectionScanner {
+
+    /**
+     * A file found by the scan and its docId.
+     */
+    public static class Doc {
+        public final int docId;
+        public final String path;
+
+        public Doc(int id, String p) {
+            docId = id;
+            path = p;
+        }
+
+        @Override
+        public String toString() {
+            return docId + ":" + path;
+        }
+    }
+
+    List<Path> roots = new ArrayList<Path>();
+    List<PathMatcher> includes = new ArrayList<PathMatcher>();
+    List<PathMatcher> excludes = new ArrayList<PathMatcher>();
+    long minSize = 0;
+    long maxSize = Long.MAX_VALUE;
+    String docIdMapPath = null;
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    // docIds given by assignDocId after a scan, loaded from the docId map on first use
+    Map<String, Integer> liveIds = null;
+    int liveNext = 0;
+
+    // statistics of the last scan
+    AtomicInteger directories = new AtomicInteger();
+    AtomicInteger filtered = new AtomicInteger();
+    int newDocs = 0;
+    long scanMillis = 0;
+
+    /**
+     * @param roots The directories to scan.
+     */
+    public CollectionScanner(String... roots) {
+        for (String r : roots) {
+            this.roots.add(Paths.get(r));
+        }
+    }
+
+    //---------------------------------------------
+    /**
+     * Keeps only files matching at least one include glob. Without include
+     * globs every file is kept.
+     * @param glob A glob over the path relative to its root.
+     */
+    public void addInclude(String glob) {
+        includes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+
+    /**
+     * Skips files and directories matching a glob.
+     * @param glob A glob over the path relative to its root.
+     */
+    public void addExclude(String glob) {
+        excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+
+    /**
+     * Skips files smaller than min or larger than max bytes.
+     */
+    public void setSizeLimits(long min, long max) {
+        minSize = min;
+        maxSize = max;
+    }
+
+    /**
+     * Keeps docIds stable across scans through a file mapping paths to
+     * docIds. The file is read by scan and rewritten after it.
+     * @param path The map file, or null to number the files from 0.
+     */
+    public void setDocIdMap(String path) {
+        docIdMapPath = path;
+    }
+
+    public void setThreads(int n) {
+        threads = Math.max(1, n);
+    }
+
+    //---------------------------------------------
+    /**
+     * Scans the roots and streams the documents in increasing docId order,
+     * ready for {@link Index5#buildIndex(Stream)}. The walk runs in the
+     * background while the stream is consumed; the docId map is written
+     * and the statistics are complete once the stream is exhausted.
+     * @return The documents.
+     */
+    public Stream<Doc> stream() throws IOException {
+        Map<String, Integer> known = new HashMap<String, Integer>();
+        int next = docIdMapPath == null ? 0 : readDocIdMap(known);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new ScanIterator(known, next),
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT), false);
+    }
+
+    /**
+     * Scans the roots.
+     * @return The documents in increasing docId order.
+     */
+    public List<Doc> scan() throws IOException {
+        return stream().collect(Collectors.toList());
+    }
+
+    /**
+     * Starts walking every root in a pool.
+     * @return The walks of the roots, in the order of the roots.
+     */
+    List<Walk> startWalks(ForkJoinPool pool) {
+        List<Walk> walks = new ArrayList<Walk>();
+        for (Path root : roots) {
+            if (!Files.isDirectory(root)) {
+                System.out.println("Directory does not exist or is not a directory: " + root);
+                continue;
+            }
+            Walk w = new Walk(root, root);
+            pool.execute(w);
+            walks.add(w);
+        }
+        return walks;
+    }
+
+    /**
+     * Gives out the known paths in docId order, then the new paths in path
+     * order as the background walk lists their directories.
+     */
+    class ScanIterator implements Iterator<Doc> {
+        final long t0 = System.currentTimeMillis();
+        final Map<String, Integer> known;     // path to docId from the map
+        final Iterator<Map.Entry<Integer, String>> knownInOrder;
+        final Map<String, Integer> ids = new HashMap<String, Integer>(); // written back to the map
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        final PathIterator found;
+        int next;
+        Doc pending = null;
+        boolean done = false;
+
+        ScanIterator(Map<String, Integer> k, int n) {
+            known = k;
+            next = n;
+            TreeMap<Integer, String> byId = new TreeMap<Integer, String>();
+            for (Map.Entry<String, Integer> e : k.entrySet()) {
+                byId.put(e.getValue(), e.getKey());
+            }
+            knownInOrder = byId.entrySet().iterator();
+            directories.set(0);
+            filtered.set(0);
+            newDocs = 0;
+            found = new PathIterator(startWalks(pool));
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (pending == null && !done) {
+                pending = advance();
+            }
+            return pending != null;
+        }
+
+        @Override
+        public Doc next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Doc d = pending;
+            pending = null;
+            return d;
+        }
+
+        Doc advance() {
+            while (knownInOrder.hasNext()) {
+                Map.Entry<Integer, String> e = knownInOrder.next();
+                if (accepts(e.getValue())) {
+                    ids.put(e.getValue(), e.getKey());
+                    return new Doc(e.getKey(), e.getValue());
+                }
+            }
+            while (found.hasNext()) {
+                String p = found.next();
+                if (!known.containsKey(p)) { // known paths were given out above
+                    ids.put(p, next);
+                    newDocs++;
+                    return new Doc(next++, p);
+                }
+            }
+            finish();
+            return null;
+        }
+
+        void finish() {
+            done = true;
+            pool.shutdown();
+            if (docIdMapPath != null) {
+                try {
+                    writeDocIdMap(ids, next);
+                } catch (IOException e) {
+                    System.out.println("Cannot write docId map " + docIdMapPath + ": " + e.getMessage());
+                }
+            }
+            synchronized (CollectionScanner.this) {
+                liveIds = null; // read again from the map just written
+            }
+            scanMillis = System.currentTimeMillis() - t0;
+        }
+    }
+
+    /**
+     * Walks the roots without giving docIds and without touching the docId
+     * map, for example to compare a directory with an index.
+     * @return The paths of the files that pass the filters, sorted.
+     */
+    public List<String> paths() {
+        directories.set(0);
+        filtered.set(0);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<String> paths = new ArrayList<String>();
+        try {
+            for (PathIterator it = new PathIterator(startWalks(pool)); it.hasNext();) {
+                paths.add(it.next());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    /**
+     * Gives out the files found by walks depth first, in the order of the
+     * sorted directory listings, waiting for a directory only when its turn
+     * comes while the walks list the directories after it in parallel.
+     */
+    static class PathIterator implements Iterator<String> {
+        final ArrayDeque<Iterator<Object>> stack = new ArrayDeque<Iterator<Object>>();
+        String pending = null;
+
+        PathIterator(List<Walk> walks) {
+            stack.push(new ArrayList<Object>(walks).iterator());
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (pending == null && !stack.isEmpty()) {
+                Iterator<Object> top = stack.peek();
+                if (!top.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+                Object e = top.next();
+                if (e instanceof Walk) {
+                    stack.push(((Walk) e).entries().iterator());
+                } else {
+                    pending = (String) e;
+                }
+            }
+            return pending != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String p = pending;
+            pending = null;
+            return p;
+        }
+    }
+
+    /**
+     * Lists one directory sorted by name, keeps the files that pass the
+     * filters and forks a task for every subdirectory. The entries keep
+     * the listing order, so the tree of walks gives the files in path order
+     * however the tasks were scheduled.
+     */
+    class Walk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final transient Path root;
+        final transient Path dir;
+        transient List<Object> entries; // path of a file, or the Walk of a subdirectory
+
+        Walk(Path r, Path d) {
+            root = r;
+            dir = d;
+        }
+
+        @Override
+        protected void compute() {
+            directories.incrementAndGet();
+            List<Path> listing = new ArrayList<Path>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path p : ds) {
+                    listing.add(p);
+                }
+            } catch (IOException e) {
+                System.out.println("Cannot read directory " + dir + ": " + e.getMessage());
+            }
+            Collections.sort(listing);
+            List<Object> list = new ArrayList<Object>();
+            for (Path p : listing) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    System.out.println("Cannot read " + p + ": " + e.getMessage()); // removed while scanning
+                    continue;
+                }
+                Path rel = root.relativize(p);
+                if (attrs.isDirectory()) {
+                    if (!matches(excludes, rel)) {
+                        list.add(new Walk(root, p));
+                    }
+                } else if (attrs.isRegularFile()) {
+                    if (accept(rel, attrs.size())) {
+                        list.add(p.toString());
+                    } else {
+                        filtered.incrementAndGet();
+                    }
+                }
+            }
+            entries = list;
+            // a worker runs its own tasks last forked first: fork backwards
+            // so it walks the tree in the order the files are given out
+            for (int i = list.size() - 1; i >= 0; i--) {
+                if (list.get(i) instanceof Walk) {
+                    ((Walk) list.get(i)).fork();
+                }
+            }
+        }
+
+        /**
+         * Waits until the directory is listed; its subdirectories may still be walked.
+         * @return The entries of the directory in path order.
+         */
+        List<Object> entries() {
+            join();
+            return entries;
+        }
+    }
+
+    /**
+     * Checks a single file against the filters, as a scan would.
+     * @param file The path of the file.
+     * @return True if the file exists, lies under a root, in no excluded
+     *         directory, and passes the globs and size limits.
+     */
+    public boolean accepts(String file) {
+        Path p = Paths.get(file);
+        Path root = rootOf(p);
+        if (root == null || !acceptsDirectory(p.getParent())) {
+            return false;
+        }
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return attrs.isRegularFile() && accept(root.relativize(p), attrs.size());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether a scan would enter a directory.
+     * @param dir The directory.
+     * @return True if it is a root, or lies under a root and neither it nor
+     *         a directory above it matches an exclude glob.
+     */
+    public boolean acceptsDirectory(Path dir) {
+        Path root = dir == null ? null : rootOf(dir);
+        if (root == null) {
+            return false;
+        }
+        Path rel = root.relativize(dir);
+        for (int i = 1; i <= rel.getNameCount() && !rel.toString().isEmpty(); i++) {
+            if (matches(excludes, rel.subpath(0, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Path rootOf(Path p) {
+        for (Path root : roots) {
+            if (p.startsWith(root)) {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    boolean accept(Path rel, long size) {
+        return size >= minSize && size <= maxSize
+                && (includes.isEmpty() || matches(includes, rel)) && !matches(excludes, rel);
+    }
+
+    static boolean matches(List<PathMatcher> globs, Path rel) {
+        for (PathMatcher m : globs) {
+            if (m.matches(rel)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //---------------------------------------------
+    /**
+     * Reads the docId map: one "docId,path" line per path, and a first line
+     * "next,n" with the docId the next new path gets.
+     * @param ids Receives the path to docId entries.
+     * @return The next free docId.
+     */
+    int readDocIdMap(Map<String, Integer> ids) throws IOException {
+        if (!Files.exists(Paths.get(docIdMapPath))) {
+            return 0;
+        }
+        int next = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(docIdMapPath, StandardCharsets.UTF_8))) {
+            String ln;
+            while ((ln = in.readLine()) != null) {
+                int c = ln.indexOf(',');
+                if (c < 0) {
+                    continue;
+                }
+                if (ln.startsWith("next,")) {
+                    next = Math.max(next, Integer.parseInt(ln.substring(c + 1)));
+                    continue;
+                }
+                int id = Integer.parseInt(ln.substring(0, c));
+                ids.put(ln.substring(c + 1), id);
+                next = Math.max(next, id + 1);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Writes the docId map to a temporary file, syncs it and renames it over
+     * the old map. Paths of files that disappeared are dropped, the next
+     * free docId is kept so their docIds are not given again.
+     */
+    void writeDocIdMap(Map<String, Integer> ids, int next) throws IOException {
+        Path target = Paths.get(docIdMapPath);
+        Path tmp = Paths.get(docIdMapPath + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp.toFile());
+        try (Writer wr = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
+            wr.write("next," + next + "\n");
+            List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(ids.entrySet());
+            entries.sort(Map.Entry.comparingByValue());
+            for (Map.Entry<String, Integer> e : entries) {
+                wr.write(e.getValue() + "," + e.getKey() + "\n");
+            }
+            wr.flush();
+            fos.getChannel().force(true);
+        }
+        IndexCommitter.move(tmp, target);
+    }
+
+    /**
+     * Gives a new or changed file a docId after a scan, for example for a
+     * DirectoryWatcher: the next docId the docId map would give, but at
+     * least floor. The map is kept in memory and written by saveDocIds.
+     * @param path The file.
+     * @param floor The smallest docId the index accepts.
+     * @return The docId.
+     */
+    public synchronized int assignDocId(String path, int floor) {
+        loadDocIds();
+        int id = Math.max(liveNext, floor);
+        liveIds.put(path, id);
+        liveNext = id + 1;
+        return id;
+    }
+
+    /**
+     * Drops a file that is gone from the docId map kept by assignDocId. Its
+     * docId is not given again.
+     */
+    public synchronized void forgetDocId(String path) {
+        loadDocIds();
+        liveIds.remove(path);
+    }
+
+    /**
+     * Reads the docId map for assignDocId, once.
+     */
+    synchronized void loadDocIds() {
+        if (liveIds != null) {
+            return;
+        }
+        liveIds = new HashMap<String, Integer>();
+        liveNext = 0;
+        if (docIdMapPath != null) {
+            try {
+                liveNext = readDocIdMap(liveIds);
+            } catch (IOException e) {
+                System.out.println("Cannot read docId map " + docIdMapPath + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes the docIds given by assignDocId to the docId map, if there is one.
+     */
+    public synchronized void saveDocIds() throws IOException {
+        if (docIdMapPath != null && liveIds != null) {
+            writeDocIdMap(liveIds, liveNext);
+        }
+    }
+
+    //---------------------------------------------
+    /**
+     * @return The statistics of the last scan.
+     */
+    public String report() {
+        return String.format("Scanned %d directories in %d ms: %d files filtered out, %d new documents",
+                directories.get(), scanMillis, filtered.get(), newDocs);
+    }
+}
@@ -14,11 +14,65 @@ public class DictEntry {
     public int term_freq = 0; //number of times the term is mentioned in the collection
 //=====================================================================
     //public HashSet<Integer> postingList;
+    // the postings are either the linked list or, for terms with a full
+    // block once finalizeIndex ran, only the packed form
     Posting pList = null;
     Posting last = null;
+    PackedPostings packed = null; // set by Index5.finalizeIndex, pList and last are null then
+    BitmapPostings bitmap = null; // set by Index5.finalizeIndex for dense terms, in addition to the postings
+    double statsLogDf = Double.NaN; // log10 of the doc_freq the document norms counted, NaN before
+//------------------------------------------------
+
+    // makes the linked list editable and drops the bitmap before the
+    // postings change, finalizeIndex packs and indexes this term again
+    void postingsChanged() {
+        unpack();
+        bitmap = null;
+    }
+
+    /**
+     * @return The postings as a linked list: the stored list, or a new one
+     *         decoded from the packed form. Do not edit the result.
+     */
+    Posting postings() {
+        return packed != null ? packed.toPostings() : pList;
+    }
+
+    /**
+     * Replaces the packed form with a linked list.
+     */
+    void unpack() {
+        if (packed != null) {
+            pList = packed.toPostings();
+            last = pList;
+            while (last != null && last.next != null) {
+                last = last.next;
+            }
+            packed = null;
+        }
+    }
+
+    /**
+     * Replaces the linked list with the packed form.
+     */
+    void pack() {
+        packed = new PackedPostings(pList);
+        pList = null;
+        last = null;
+    }
+
+    /**
+     * @return The number of postings.
+     */
+    int length() {
+        return packed != null ? packed.count : Index5.postingLength(pList);
+    }
 //------------------------------------------------
 
     boolean postingListContains(int i) {
+        if (packed != null) {
+            return packed.dtf(i) > 0;
+        }
         boolean found = false;
         Posting p = pList;
         while (p != null) {
@@ -32,6 +86,9 @@ public class DictEntry {
 //------------------------------------------------
 
     int getPosting(int i) {
+        if (packed != null) {
+            return packed.dtf(i);
+        }
         int found = 0;
         Posting p = pList;
         while (p != null) {
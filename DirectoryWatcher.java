@@ -0,0 +1,490 @@
+package invertedIndex;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an index in step with the directory trees of a CollectionScanner.
+ * Every directory the scanner would enter is watched, including directories
+ * created later, and only files that pass the scanner's globs and size
+ * limits are indexed. Filesystem events are collected until the trees have
+ * been quiet for a debounce delay, then only the affected files are
+ * reindexed: a file whose modification time and size are unchanged, or
+ * whose content hash is unchanged, is skipped. A modified file is removed
+ * and indexed again under a new docId, so posting lists stay in increasing
+ * docId order. New docIds come from the scanner, so a docId map set on it
+ * follows the changes and the next scan gives the same docIds. Only the
+ * statistics of the terms a batch changed are computed again. Every batch is applied under the index write lock, so
+ * queries see it as soon as it is published. When a DocIdReorderer or a
+ * load renumbered the documents, the docIds of the known files are looked
+ * up again by path before the batch is applied.
+ *
+ * Freshness lag is the time from the first event of a file to the moment its
+ * new version is searchable.
+ */
+public class DirectoryWatcher implements Runnable {
+
+    /**
+     * What is known about an indexed file.
+     */
+    static class FileState {
+        int docId;
+        long modified;
+        long size;
+        byte[] hash;
+        Set<String> terms;  // null when unknown, removal then scans the dictionary
+    }
+
+    public long debounceMillis = 200;
+
+    Index5 index;
+    CollectionScanner scanner;
+    WatchService watcher;
+    Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+    Thread thread;
+    volatile boolean running = false;
+
+    Map<String, FileState> files = new HashMap<String, FileState>();
+    int nextDocId = 0;
+    int renumbered;     // index.renumbered when the docIds in files were last checked
+
+    // metrics
+    public long batches = 0;
+    public long reindexed = 0;
+    public long removed = 0;
+    public long skipped = 0;
+    public long lastLagMillis = 0;
+    public long maxLagMillis = 0;
+    long totalLagMillis = 0;
+    long lagCount = 0;
+
+    /**
+     * Watches one directory tree, with no filters.
+     */
+    public DirectoryWatcher(Index5 ix, String dir) {
+        this(ix, new CollectionScanner(dir));
+    }
+
+    /**
+     * Watches the roots of a scanner, with its include and exclude globs
+     * and size limits, for example the scanner that found the documents.
+     */
+    public DirectoryWatcher(Index5 ix, CollectionScanner s) {
+        index = ix;
+        scanner = s;
+    }
+
+    //---------------------------------------------
+    /**
+     * Brings the index in step with the directory trees and starts watching
+     * them in a background thread. A document the index already holds is
+     * adopted when its file still passes the filters and its terms and term
+     * counts are those in the index; a file that changed since it was
+     * indexed, or could not be read, is reindexed. Other files are indexed
+     * and documents whose file is gone or filtered out are removed. Only the
+     * term signatures are computed under the read lock; the files are read
+     * without it, as UTF-8 like Index5.buildIndex reads them.
+     */
+    public void start() throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+        for (Path root : scanner.roots) {
+            if (Files.isDirectory(root)) {
+                register(root, null);
+            }
+        }
+        scanner.loadDocIds();
+        Map<String, Long> all = new LinkedHashMap<String, Long>();
+        long now = System.currentTimeMillis();
+        long[] indexed;
+        int base;
+        index.lock.readLock().lock();
+        try {
+            // docIds are never reused, the document store may still hold old ones
+            nextDocId = index.sources.isEmpty() ? 0 : index.sources.last() + 1;
+            renumbered = index.renumbered;
+            indexed = signatures();
+            base = index.sources.first();
+            for (int d = base; d >= 0; d = index.sources.next(d)) {
+                FileState st = new FileState();
+                st.docId = d;
+                files.put(index.sources.url(d), st);
+            }
+        } finally {
+            index.lock.readLock().unlock();
+        }
+        // the files are read without the lock, queries keep running meanwhile
+        for (Map.Entry<String, FileState> e : files.entrySet()) {
+            String url = e.getKey();
+            FileState st = e.getValue();
+            if (!scanner.accepts(url)) {
+                all.put(url, now); // removed or filtered out while the watcher was not running
+                continue;
+            }
+            try {
+                Path p = Paths.get(url);
+                byte[] content = Files.readAllBytes(p);
+                String text = new String(content, StandardCharsets.UTF_8);
+                Map<String, Integer> counts = termCounts(text);
+                if (signature(counts) != indexed[st.docId - base]) {
+                    all.put(url, now); // changed since it was indexed, terms unknown
+                    continue;
+                }
+                st.modified = Files.getLastModifiedTime(p).toMillis();
+                st.size = content.length;
+                st.hash = sha256(content);
+                st.terms = counts.keySet();
+            } catch (IOException ex) {
+                System.out.println("Cannot read " + url + ": " + ex.getMessage());
+                all.put(url, now); // read again by apply, removed if it is gone
+            }
+        }
+        for (String f : scanner.paths()) {
+            if (!files.containsKey(f)) {
+                all.put(f, now);
+            }
+        }
+        apply(all, false);
+        running = true;
+        thread = new Thread(this, "directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the directory.
+     */
+    public void stop() throws IOException {
+        running = false;
+        watcher.close();
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Watches a directory and every subdirectory the scanner would enter.
+     * @param dir The directory.
+     * @param found Receives the files in the tree, may be null.
+     */
+    void register(Path dir, List<String> found) throws IOException {
+        if (!scanner.acceptsDirectory(dir)) {
+            return;
+        }
+        WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        keys.put(key, dir);
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                    register(p, found);
+                } else if (found != null) {
+                    found.add(p.toString());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        Map<String, Long> pending = new LinkedHashMap<String, Long>(); // path -> time of first event
+        while (running) {
+            try {
+                WatchKey key = pending.isEmpty() ? watcher.take() : watcher.poll(debounceMillis, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    // quiet for the debounce delay, publish the batch
+                    apply(pending, true);
+                    pending.clear();
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                Path dir = keys.get(key);
+                for (WatchEvent<?> ev : key.pollEvents()) {
+                    if (ev.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                        // events were lost, compare every known and present file
+                        for (String f : scanner.paths()) {
+                            pending.putIfAbsent(f, now);
+                        }
+                        for (String f : new ArrayList<String>(files.keySet())) {
+                            pending.putIfAbsent(f, now);
+                        }
+                        continue;
+                    }
+                    Path p = dir.resolve((Path) ev.context());
+                    if (ev.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                        // files may be created in it before it is registered
+                        List<String> found = new ArrayList<String>();
+                        register(p, found);
+                        for (String f : found) {
+                            pending.putIfAbsent(f, now);
+                        }
+                    } else if (ev.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        // a deleted or moved directory takes its files along
+                        String prefix = p.toString() + p.getFileSystem().getSeparator();
+                        for (String f : files.keySet()) {
+                            if (f.startsWith(prefix)) {
+                                pending.putIfAbsent(f, now);
+                            }
+                        }
+                    }
+                    pending.putIfAbsent(p.toString(), now);
+                }
+                if (!key.reset()) {
+                    keys.remove(key); // the directory is gone
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            } catch (IOException e) {
+                System.out.println("Watching " + scanner.roots + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    //---------------------------------------------
+    /**
+     * Reindexes the changed files of a batch and publishes the result.
+     * @param batch Path to the time its first event was seen.
+     * @param measure True to record the freshness lag of the batch.
+     */
+    void apply(Map<String, Long> batch, boolean measure) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        // read outside the lock, queries keep running meanwhile
+        Map<String, FileState> changed = new LinkedHashMap<String, FileState>();
+        Map<String, String> texts = new HashMap<String, String>();
+        List<String> gone = new ArrayList<String>();
+        for (String f : batch.keySet()) {
+            Path p = Paths.get(f);
+            FileState old = files.get(f);
+            if (!scanner.accepts(f)) {
+                if (old != null) {
+                    gone.add(f); // deleted, or a directory, or filtered out
+                }
+                continue;
+            }
+            try {
+                long modified = Files.getLastModifiedTime(p).toMillis();
+                long size = Files.size(p);
+                if (old != null && old.modified == modified && old.size == size) {
+                    skipped++;
+                    continue;
+                }
+                byte[] content = Files.readAllBytes(p);
+                byte[] hash = sha256(content);
+                if (old != null && MessageDigest.isEqual(old.hash, hash)) {
+                    old.modified = modified;
+                    old.size = size;
+                    skipped++;
+                    continue;
+                }
+                FileState st = new FileState();
+                st.modified = modified;
+                st.size = size;
+                st.hash = hash;
+                String text = new String(content, StandardCharsets.UTF_8);
+                st.terms = terms(text);
+                changed.put(f, st);
+                texts.put(f, text);
+            } catch (IOException e) {
+                System.out.println("Cannot read " + f + ": " + e.getMessage());
+            }
+        }
+        if (changed.isEmpty() && gone.isEmpty()) {
+            return;
+        }
+
+        index.lock.writeLock().lock();
+        try {
+            if (index.renumbered != renumbered) {
+                resync();
+            }
+            for (String f : gone) {
+                FileState old = files.remove(f);
+                if (old != null) {
+                    index.removeDocument(old.docId, old.terms);
+                    scanner.forgetDocId(f);
+                    removed++;
+                }
+            }
+            for (Map.Entry<String, FileState> e : changed.entrySet()) {
+                FileState old = files.get(e.getKey());
+                if (old != null) {
+                    index.removeDocument(old.docId, old.terms);
+                }
+                FileState st = e.getValue();
+                st.docId = nextDocId(e.getKey());
+                index.addDocument(st.docId, e.getKey(), texts.get(e.getKey()));
+                files.put(e.getKey(), st);
+                reindexed++;
+            }
+            index.setN(index.sources.size());
+            index.updateStatistics();
+        } finally {
+            index.lock.writeLock().unlock();
+        }
+        try {
+            scanner.saveDocIds();
+        } catch (IOException e) {
+            System.out.println("Cannot write docId map " + scanner.docIdMapPath + ": " + e.getMessage());
+        }
+
+        batches++;
+        if (measure) {
+            long now = System.currentTimeMillis();
+            for (String f : gone) {
+                recordLag(now - batch.get(f));
+            }
+            for (String f : changed.keySet()) {
+                recordLag(now - batch.get(f));
+            }
+        }
+    }
+
+    /**
+     * Gives a new or changed file its docId through the scanner, so the
+     * docId map of the scanner records it, and above every docId in the index.
+     */
+    int nextDocId(String path) {
+        int id = scanner.assignDocId(path, nextDocId);
+        nextDocId = id + 1;
+        return id;
+    }
+
+    /**
+     * Looks the docId of every known file up again after a reorder or a
+     * load gave the documents other docIds. Files the index no longer holds
+     * are forgotten, the next event of such a file indexes it again. The terms are
+     * forgotten too, a loaded document may differ from the file. The caller
+     * holds the write lock.
+     */
+    void resync() {
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        for (int d = index.sources.first(); d >= 0; d = index.sources.next(d)) {
+            ids.put(index.sources.url(d), d);
+        }
+        files.keySet().retainAll(ids.keySet());
+        for (Map.Entry<String, FileState> e : files.entrySet()) {
+            e.getValue().docId = ids.get(e.getKey());
+            e.getValue().terms = null;
+        }
+        if (!index.sources.isEmpty()) {
+            nextDocId = Math.max(nextDocId, index.sources.last() + 1);
+        }
+        renumbered = index.renumbered;
+    }
+
+    static byte[] sha256(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    Set<String> terms(String text) {
+        return termCounts(text).keySet();
+    }
+
+    /**
+     * @return The indexed terms of a text with their number of occurrences,
+     *         as indexOneLine counts them.
+     */
+    Map<String, Integer> termCounts(String text) {
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        for (String word : text.split("\\W+")) {
+            word = word.toLowerCase();
+            if (!index.stopWord(word)) {
+                counts.merge(index.stemWord(word), 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Hashes a bag of terms: the sum of a mixed hash of every term and its
+     * count, so the same terms with the same counts give the same value in
+     * any order.
+     */
+    static long signature(String term, int count) {
+        long h = term.hashCode() * 0x9E3779B97F4A7C15L + count;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    static long signature(Map<String, Integer> counts) {
+        long sig = 0;
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            sig += signature(e.getKey(), e.getValue());
+        }
+        return sig;
+    }
+
+    /**
+     * Computes the signature of every document as it is in the index, in
+     * one pass over the dictionary. The caller holds the read lock.
+     * @return The signatures, indexed by docId - sources.first().
+     */
+    long[] signatures() {
+        if (index.sources.isEmpty()) {
+            return new long[0];
+        }
+        int base = index.sources.first();
+        long[] sig = new long[index.sources.last() - base + 1];
+        for (Map.Entry<String, DictEntry> e : index.index.entrySet()) {
+            String term = e.getKey();
+            Index5.forEachPosting(e.getValue(), (docId, dtf) -> {
+                if (docId >= base && docId - base < sig.length) {
+                    sig[docId - base] += signature(term, dtf);
+                }
+            });
+        }
+        return sig;
+    }
+
+    synchronized void recordLag(long lag) {
+        lastLagMillis = lag;
+        maxLagMillis = Math.max(maxLagMillis, lag);
+        totalLagMillis += lag;
+        lagCount++;
+    }
+
+    /**
+     * @return The average freshness lag in milliseconds.
+     */
+    public synchronized double averageLagMillis() {
+        return lagCount == 0 ? 0 : (double) totalLagMillis / lagCount;
+    }
+
+    /**
+     * @return The watcher counters and freshness lag as one line.
+     */
+    public String metrics() {
+        return String.format("batches=%d reindexed=%d removed=%d unchanged=%d lag last=%d ms avg=%.1f ms max=%d ms",
+                batches, reindexed, removed, skipped, lastLagMillis, averageLagMillis(), maxLagMillis);
+    }
+}
@@ -0,0 +1,449 @@
+package invertedIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Renumbers the documents of an index so that documents sharing terms get
+ * nearby docIds, which on large collections makes docId gaps smaller
+ * (better compression) and posting lists more clustered. On small or
+ * uniform collections the gaps may not shrink; the report shows the
+ * measured sizes either way. The order is computed by recursive graph
+ * bisection: the documents are split in two halves, documents are swapped
+ * between the halves while that lowers the estimated cost of encoding the
+ * gaps of every term, and each half is split again.
+ *
+ * Postings, the source records, the document statistics and the document
+ * store are rewritten with the new docIds under the index write lock. The
+ * order is computed under the read lock only, so documents may be added or
+ * removed in between; those added keep their docId. A DirectoryWatcher
+ * notices the renumbering and looks its files up again by path.
+ */
+public class DocIdReorderer {
+
+    /**
+     * Index size and query latency before and after reordering.
+     */
+    public static class Report {
+        public int documents;
+        public long bytesBefore;       // postings as variable-byte docId gaps
+        public long bytesAfter;
+        public double andMicrosBefore; // average AND query latency
+        public double andMicrosAfter;
+        public int queries;
+        public long reorderMillis;
+
+        @Override
+        public String toString() {
+            return String.format("Reordered %d documents in %d ms%n"
+                    + "  postings size : %d -> %d bytes (%.1f%%)%n"
+                    + "  AND latency   : %.2f -> %.2f us over %d queries%n",
+                    documents, reorderMillis, bytesBefore, bytesAfter,
+                    bytesBefore == 0 ? 0.0 : 100.0 * (bytesAfter - bytesBefore) / bytesBefore,
+                    andMicrosBefore, andMicrosAfter, queries);
+        }
+    }
+
+    public int iterations = 20;  // swap rounds per bisection
+    public int leafSize = 16;    // partitions this small are not split further
+    public int queries = 200;    // AND queries timed for the report
+
+    Index5 index;
+
+    // graph: document -> terms, both numbered densely
+    int[] docIds;        // dense document number -> current docId
+    int[][] docTerms;
+    int[] degL;
+    int[] degR;
+    double[] log2;       // log2 of 0..number of documents + 1
+
+    public DocIdReorderer(Index5 ix) {
+        index = ix;
+    }
+
+    //---------------------------------------------
+    /**
+     * Computes a new order, rewrites the index with it and measures the effect.
+     * @return The size and latency report.
+     */
+    public Report reorder() {
+        Report r = new Report();
+        List<List<String>> sample = sampleQueries();
+        r.documents = index.sources.size();
+        r.queries = sample.size();
+        r.bytesBefore = postingBytes(index);
+        r.andMicrosBefore = andLatency(sample);
+
+        long t0 = System.currentTimeMillis();
+        Map<Integer, Integer> newIds = computeOrder();
+        apply(newIds);
+        r.reorderMillis = System.currentTimeMillis() - t0;
+
+        r.bytesAfter = postingBytes(index);
+        r.andMicrosAfter = andLatency(sample);
+        return r;
+    }
+
+    /**
+     * Computes the new docId of every document; new docIds occupy the same
+     * range as the old ones.
+     * @return Old docId to new docId.
+     */
+    public Map<Integer, Integer> computeOrder() {
+        index.lock.readLock().lock();
+        try {
+            buildGraph();
+        } finally {
+            index.lock.readLock().unlock();
+        }
+        int n = docIds.length;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        bisect(order, 0, n);
+
+        Map<Integer, Integer> newIds = new HashMap<Integer, Integer>();
+        for (int i = 0; i < n; i++) {
+            newIds.put(docIds[order[i]], docIds[i]); // docIds is sorted, reuse the same ids
+        }
+        docTerms = null;
+        return newIds;
+    }
+
+    void buildGraph() {
+        docIds = new int[index.sources.size()];
+        Map<Integer, Integer> dense = new HashMap<Integer, Integer>();
+        int k = 0;
+        for (int d = index.sources.first(); d >= 0; d = index.sources.next(d)) {
+            docIds[k] = d;
+            dense.put(d, k++);
+        }
+        int[] counts = new int[docIds.length];
+        List<DictEntry> useful = new ArrayList<DictEntry>();
+        for (DictEntry e : index.index.values()) {
+            if (e.doc_freq > 1) { // terms in one document have no gaps to improve
+                useful.add(e);
+                Index5.forEachPosting(e, (docId, dtf) -> counts[dense.get(docId)]++);
+            }
+        }
+        docTerms = new int[docIds.length][];
+        for (int d = 0; d < docIds.length; d++) {
+            docTerms[d] = new int[counts[d]];
+            counts[d] = 0;
+        }
+        for (int t = 0; t < useful.size(); t++) {
+            int term = t;
+            Index5.forEachPosting(useful.get(t), (docId, dtf) -> {
+                int d = dense.get(docId);
+                docTerms[d][counts[d]++] = term;
+            });
+        }
+        degL = new int[useful.size()];
+        degR = new int[useful.size()];
+        log2 = new double[docIds.length + 2];
+        for (int i = 1; i < log2.length; i++) {
+            log2[i] = Math.log(i) / Math.log(2);
+        }
+    }
+
+    //---------------------------------------------
+    /**
+     * Estimated bits needed by the gaps of a term with deg postings in a
+     * partition of n documents.
+     */
+    double cost(int deg, int n) {
+        return deg == 0 ? 0 : deg * (log2[n] - log2[deg + 1]);
+    }
+
+    /**
+     * Orders docs[from, to) by splitting it in two and improving the split.
+     */
+    void bisect(int[] docs, int from, int to) {
+        int n = to - from;
+        if (n <= leafSize) {
+            return;
+        }
+        int mid = from + n / 2;
+        int nL = mid - from;
+        int nR = to - mid;
+        for (int i = from; i < to; i++) {
+            int[] deg = i < mid ? degL : degR;
+            for (int t : docTerms[docs[i]]) {
+                deg[t]++;
+            }
+        }
+
+        double[] gainL = new double[nL];
+        double[] gainR = new double[nR];
+        Integer[] ordL = new Integer[nL];
+        Integer[] ordR = new Integer[nR];
+        for (int it = 0; it < iterations; it++) {
+            for (int i = 0; i < nL; i++) {
+                gainL[i] = moveGain(docs[from + i], degL, degR, nL, nR);
+                ordL[i] = i;
+            }
+            for (int i = 0; i < nR; i++) {
+                gainR[i] = moveGain(docs[mid + i], degR, degL, nR, nL);
+                ordR[i] = i;
+            }
+            Arrays.sort(ordL, (a, b) -> Double.compare(gainL[b], gainL[a]));
+            Arrays.sort(ordR, (a, b) -> Double.compare(gainR[b], gainR[a]));
+            int swaps = 0;
+            for (int i = 0; i < Math.min(nL, nR); i++) {
+                if (gainL[ordL[i]] + gainR[ordR[i]] <= 0) {
+                    break;
+                }
+                int a = from + ordL[i];
+                int b = mid + ordR[i];
+                for (int t : docTerms[docs[a]]) {
+                    degL[t]--;
+                    degR[t]++;
+                }
+                for (int t : docTerms[docs[b]]) {
+                    degR[t]--;
+                    degL[t]++;
+                }
+                int tmp = docs[a];
+                docs[a] = docs[b];
+                docs[b] = tmp;
+                swaps++;
+            }
+            if (swaps == 0) {
+                break;
+            }
+        }
+
+        // clear the degrees before the halves are split
+        for (int i = from; i < to; i++) {
+            for (int t : docTerms[docs[i]]) {
+                degL[t] = 0;
+                degR[t] = 0;
+            }
+        }
+        bisect(docs, from, mid);
+        bisect(docs, mid, to);
+    }
+
+    /**
+     * Estimated decrease of the gap encoding cost if a document moved from
+     * its partition to the other one.
+     */
+    double moveGain(int doc, int[] from, int[] to, int nFrom, int nTo) {
+        double gain = 0;
+        for (int t : docTerms[doc]) {
+            int df = from[t];
+            int dt = to[t];
+            gain += cost(df, nFrom) + cost(dt, nTo) - cost(df - 1, nFrom) - cost(dt + 1, nTo);
+        }
+        return gain;
+    }
+
+    //---------------------------------------------
+    /**
+     * Rewrites postings, source records, document statistics and the
+     * document store with new docIds, holding the index write lock. The
+     * index may have changed since the order was computed: documents that
+     * are gone are ignored and documents added meanwhile keep their docId.
+     * Nothing is changed if two documents would get the same docId.
+     * @param newIds Old docId to new docId.
+     * @throws IllegalArgumentException If two documents would get the same docId.
+     */
+    public void apply(Map<Integer, Integer> newIds) {
+        index.lock.writeLock().lock();
+        try {
+            remap(complete(newIds));
+        } finally {
+            index.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Restricts an order to the documents in the index, the ones it does
+     * not cover keep their docId. The caller holds the write lock.
+     * @return Old docId to new docId for exactly the documents in the index.
+     */
+    Map<Integer, Integer> complete(Map<Integer, Integer> newIds) {
+        Map<Integer, Integer> ids = new HashMap<Integer, Integer>();
+        Map<Integer, Integer> owner = new HashMap<Integer, Integer>();
+        DocTable sources = index.sources;
+        for (int d = sources.first(); d >= 0; d = sources.next(d)) {
+            Integer id = newIds.get(d);
+            int to = id == null ? d : id;
+            Integer other = owner.put(to, d);
+            if (other != null) {
+                throw new IllegalArgumentException("documents " + other + " and " + d + " would both get docId " + to);
+            }
+            ids.put(d, to);
+        }
+        return ids;
+    }
+
+    void remap(Map<Integer, Integer> newIds) {
+        for (DictEntry e : index.index.values()) {
+            remapPostings(e, newIds);
+        }
+        if (index.biwords != null) {
+            index.biwords.remap(newIds);
+        }
+
+        DocTable old = index.sources;
+        DocTable sources = new DocTable(old.offHeap);
+        for (int d = old.first(); d >= 0; d = old.next(d)) {
+            sources.add(newIds.get(d), old.url(d), old.title(d), old.length(d), old.norm(d));
+        }
+        index.sources = sources;
+
+        if (index.docStore != null) {
+            try {
+                rewriteDocStore(newIds);
+            } catch (IOException e) {
+                System.out.println("Cannot rewrite document store: " + e.getMessage());
+            }
+        }
+        boolean finalized = index.finalized();
+        index.renumbered++;
+        index.invalidateStatistics();
+        index.changedTerms = null; // the norm sums are indexed by the old docIds
+        if (finalized) {
+            index.recomputeStatistics(); // keeps the collection statistics of a shard
+        }
+    }
+
+    /**
+     * Renumbers the postings of one entry and sorts them by their new docId.
+     */
+    static void remapPostings(DictEntry e, Map<Integer, Integer> newIds) {
+        e.unpack();
+        int n = Index5.postingLength(e.pList);
+        long[] pairs = new long[n]; // new docId in the high half, dtf in the low half
+        int i = 0;
+        for (Posting p = e.pList; p != null; p = p.next) {
+            pairs[i++] = ((long) newIds.get(p.docId) << 32) | p.dtf;
+        }
+        Arrays.sort(pairs);
+        e.pList = null;
+        e.last = null;
+        e.postingsChanged();
+        for (long pr : pairs) {
+            Posting p = new Posting((int) (pr >>> 32), (int) pr);
+            if (e.pList == null) {
+                e.pList = p;
+            } else {
+                e.last.next = p;
+            }
+            e.last = p;
+        }
+    }
+
+    void rewriteDocStore(Map<Integer, Integer> newIds) throws IOException {
+        String path = index.docStorePath;
+        String tmp = path + ".tmp";
+        Map<Integer, Integer> oldIds = new HashMap<Integer, Integer>();
+        for (Map.Entry<Integer, Integer> e : newIds.entrySet()) {
+            oldIds.put(e.getValue(), e.getKey());
+        }
+        List<Integer> ids = new ArrayList<Integer>(oldIds.keySet());
+        Collections.sort(ids);
+        DocStoreWriter wr = new DocStoreWriter(tmp);
+        for (int id : ids) {
+            String text = index.docStore.get(oldIds.get(id));
+            if (text != null) {
+                wr.add(id, text);
+            }
+        }
+        wr.close();
+        index.closeDocStore();
+        File f = new File(path);
+        if (!f.delete() || !new File(tmp).renameTo(f)) {
+            throw new IOException("Cannot replace " + path);
+        }
+        index.openDocStore(path);
+    }
+
+    //---------------------------------------------
+    /**
+     * Estimates the size of the postings stored as variable-byte docId gaps
+     * plus one variable-byte dtf per posting.
+     * @param ix The index.
+     * @return The size in bytes.
+     */
+    public static long postingBytes(Index5 ix) {
+        ix.lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (DictEntry e : ix.index.values()) {
+                int prev = -1;
+                for (Posting p = e.postings(); p != null; p = p.next) {
+                    bytes += vbyteLength(prev < 0 ? p.docId : p.docId - prev) + vbyteLength(p.dtf);
+                    prev = p.docId;
+                }
+            }
+            return bytes;
+        } finally {
+            ix.lock.readLock().unlock();
+        }
+    }
+
+    static int vbyteLength(int v) {
+        int n = 1;
+        while ((v >>>= 7) != 0) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Picks two-term AND queries among the more frequent terms, with a fixed
+     * seed so that the same queries are timed before and after.
+     */
+    List<List<String>> sampleQueries() {
+        List<String> terms = new ArrayList<String>();
+        index.lock.readLock().lock();
+        try {
+            for (Map.Entry<String, DictEntry> e : index.index.entrySet()) {
+                if (e.getValue().doc_freq > 1) {
+                    terms.add(e.getKey());
+                }
+            }
+        } finally {
+            index.lock.readLock().unlock();
+        }
+        Collections.sort(terms);
+        List<List<String>> sample = new ArrayList<List<String>>();
+        if (terms.size() < 2) {
+            return sample;
+        }
+        Random rnd = new Random(42);
+        for (int q = 0; q < queries; q++) {
+            sample.add(Arrays.asList(terms.get(rnd.nextInt(terms.size())), terms.get(rnd.nextInt(terms.size()))));
+        }
+        return sample;
+    }
+
+    double andLatency(List<List<String>> sample) {
+        if (sample.isEmpty()) {
+            return 0;
+        }
+        int rounds = 5;
+        for (int r = 0; r < rounds; r++) { // warm up
+            for (List<String> q : sample) {
+                index.and(q);
+            }
+        }
+        long t0 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (List<String> q : sample) {
+                index.and(q);
+            }
+        }
+        return (System.nanoTime() - t0) / 1e3 / (rounds * sample.size());
+    }
+}
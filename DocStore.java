@@ -0,0 +1,119 @@
+package invertedIndex;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Random access by docId to a document store written by
+ * {@link DocStoreWriter}. Only the block table is kept in memory; a lookup
+ * reads and inflates the one block holding the document. The last block
+ * decoded is cached, so consecutive hits from the same block cost nothing.
+ */
+public class DocStore {
+
+    RandomAccessFile file;
+    int[] firstDocIds;
+    long[] offsets;
+    int[] compressedLengths;
+    int[] rawLengths;
+
+    // last decoded block
+    int cachedBlock = -1;
+    int[] cachedIds;
+    String[] cachedTexts;
+
+    public DocStore(String path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        file.seek(file.length() - 16);
+        long tableOffset = file.readLong();
+        int blockCount = file.readInt();
+        if (file.readInt() != DocStoreWriter.MAGIC) {
+            file.close();
+            throw new IOException(path + " is not a document store");
+        }
+        firstDocIds = new int[blockCount];
+        offsets = new long[blockCount];
+        compressedLengths = new int[blockCount];
+        rawLengths = new int[blockCount];
+        byte[] table = new byte[blockCount * 20];
+        file.seek(tableOffset);
+        file.readFully(table);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(table));
+        for (int i = 0; i < blockCount; i++) {
+            firstDocIds[i] = in.readInt();
+            offsets[i] = in.readLong();
+            compressedLengths[i] = in.readInt();
+            rawLengths[i] = in.readInt();
+        }
+    }
+
+    //---------------------------------------------
+    /**
+     * Returns the text of a document.
+     * @param docId The document ID.
+     * @return The stored text, or null if the document is not in the store.
+     */
+    public synchronized String get(int docId) throws IOException {
+        int b = Arrays.binarySearch(firstDocIds, docId);
+        if (b < 0) {
+            b = -b - 2;
+        }
+        if (b < 0) {
+            return null;
+        }
+        if (b != cachedBlock) {
+            readBlock(b);
+        }
+        int i = Arrays.binarySearch(cachedIds, docId);
+        return i < 0 ? null : cachedTexts[i];
+    }
+
+    void readBlock(int b) throws IOException {
+        byte[] compressed = new byte[compressedLengths[b]];
+        file.seek(offsets[b]);
+        file.readFully(compressed);
+        byte[] raw = new byte[rawLengths[b]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                n += inflater.inflate(raw, n, raw.length - n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block " + b, e);
+        } finally {
+            inflater.end();
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+        int count = in.readInt();
+        int[] ids = new int[count];
+        String[] texts = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = in.readInt();
+            byte[] t = new byte[in.readInt()];
+            in.readFully(t);
+            texts[i] = new String(t, StandardCharsets.UTF_8);
+        }
+        cachedIds = ids;
+        cachedTexts = texts;
+        cachedBlock = b;
+    }
+
+    /**
+     * @return The number of compressed blocks.
+     */
+    public int blockCount() {
+        return firstDocIds.length;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
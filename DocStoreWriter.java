@@ -0,0 +1,122 @@
+package invertedIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the text of documents into a block-compressed document store read
+ * by {@link DocStore}. Documents are appended in increasing docId order and
+ * grouped into blocks of about blockSize bytes, every block is deflated on
+ * its own so that reading one document decompresses one small block.
+ *
+ * File layout:
+ * <pre>
+ *   block*      deflate( count, (docId, byteLength, utf8 bytes)* )
+ *   blockTable  (firstDocId int, offset long, compressedLength int, rawLength int)*
+ *   footer      blockTableOffset long, blockCount int, MAGIC int
+ * </pre>
+ */
+public class DocStoreWriter {
+
+    static final int MAGIC = 0x44535431; // "DST1"
+    static final int DEFAULT_BLOCK_SIZE = 16 * 1024;
+
+    DataOutputStream out;
+    long offset = 0;
+    int blockSize;
+    int lastDocId = Integer.MIN_VALUE;
+
+    // current block
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    DataOutputStream rawOut = new DataOutputStream(raw);
+    int count = 0;
+    int firstDocId = 0;
+
+    // block table
+    List<long[]> blocks = new ArrayList<long[]>();
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    byte[] buf = new byte[64 * 1024];
+
+    public DocStoreWriter(String path) throws IOException {
+        this(path, DEFAULT_BLOCK_SIZE);
+    }
+
+    public DocStoreWriter(String path, int blockSize) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        this.blockSize = blockSize;
+    }
+
+    //---------------------------------------------
+    /**
+     * Appends the text of a document.
+     * @param docId The document ID, greater than every ID added before.
+     * @param text The text of the document.
+     */
+    public void add(int docId, String text) throws IOException {
+        if (docId <= lastDocId) {
+            throw new IllegalArgumentException("docId " + docId + " added after " + lastDocId);
+        }
+        lastDocId = docId;
+        if (count == 0) {
+            firstDocId = docId;
+        }
+        byte[] b = text.getBytes(StandardCharsets.UTF_8);
+        rawOut.writeInt(docId);
+        rawOut.writeInt(b.length);
+        rawOut.write(b);
+        count++;
+        if (raw.size() >= blockSize) {
+            flushBlock();
+        }
+    }
+
+    void flushBlock() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream(raw.size() + 4);
+        DataOutputStream blockOut = new DataOutputStream(block);
+        blockOut.writeInt(count);
+        raw.writeTo(blockOut);
+        byte[] input = block.toByteArray();
+
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        int compressed = 0;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+            compressed += n;
+        }
+        blocks.add(new long[]{firstDocId, offset, compressed, input.length});
+        offset += compressed;
+        raw.reset();
+        count = 0;
+    }
+
+    /**
+     * Writes the last block and the block table and closes the file.
+     */
+    public void close() throws IOException {
+        flushBlock();
+        for (long[] b : blocks) {
+            out.writeInt((int) b[0]);
+            out.writeLong(b[1]);
+            out.writeInt((int) b[2]);
+            out.writeInt((int) b[3]);
+        }
+        out.writeLong(offset);
+        out.writeInt(blocks.size());
+        out.writeInt(MAGIC);
+        out.close();
+        deflater.end();
+    }
+}
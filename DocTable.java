@@ -0,0 +1,392 @@
+package invertedIndex;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Columnar table of the documents of an index. Document IDs are dense, so a
+ * document is a slot (docId - base) in parallel columns: its length, its
+ * norm and the offset of its URL and title in one UTF-8 string buffer.
+ * Looking a document up is an array access, without boxing or hashing.
+ *
+ * The columns are ByteBuffers allocated on the Java heap or, for large
+ * collections, off-heap (direct buffers). The whole table is written as
+ * one block by {@link #write(DataOutputStream)}:
+ * <pre>
+ *   base, slots, count, stringBytes
+ *   length int[slots], norm float[slots], offset int[slots], urlLength int[slots], titleLength int[slots]
+ *   strings byte[stringBytes]
+ * </pre>
+ * An offset of -1 marks an empty slot, a title length of -1 a title equal
+ * to the URL.
+ */
+public class DocTable {
+
+    static final int ABSENT = -1;
+    static final int SAME_AS_URL = -1;
+
+    public final boolean offHeap;
+    int base = 0;
+    int capacity = 0;     // allocated slots
+    int slots = 0;        // highest used slot + 1
+    int count = 0;        // documents in the table
+    ByteBuffer lengths;
+    ByteBuffer norms;
+    ByteBuffer offsets;
+    ByteBuffer urlLengths;
+    ByteBuffer titleLengths;
+    ByteBuffer strings;
+    int stringBytes = 0;  // used bytes of strings, including those of removed documents
+
+    public DocTable() {
+        this(false);
+    }
+
+    /**
+     * @param offHeap True to keep the columns in direct buffers outside the Java heap.
+     */
+    public DocTable(boolean offHeap) {
+        this.offHeap = offHeap;
+        allocate(16);
+        strings = alloc(256);
+    }
+
+    ByteBuffer alloc(int bytes) {
+        return offHeap ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+    }
+
+    void allocate(int cap) {
+        capacity = cap;
+        lengths = alloc(cap * 4);
+        norms = alloc(cap * 4);
+        offsets = alloc(cap * 4);
+        urlLengths = alloc(cap * 4);
+        titleLengths = alloc(cap * 4);
+        for (int s = 0; s < cap; s++) {
+            offsets.putInt(s * 4, ABSENT);
+        }
+    }
+
+    //---------------------------------------------
+    /**
+     * @return The number of documents in the table.
+     */
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    int slot(int docId) {
+        int s = docId - base;
+        return s >= 0 && s < slots && offsets.getInt(s * 4) != ABSENT ? s : -1;
+    }
+
+    public boolean contains(int docId) {
+        return slot(docId) >= 0;
+    }
+
+    //---------------------------------------------
+    /**
+     * Adds a document, or replaces the document with the same ID.
+     * @param docId The document ID.
+     * @param url The path of the document.
+     * @param title The title of the document.
+     */
+    public void add(int docId, String url, String title) {
+        add(docId, url, title, 0, 0f);
+    }
+
+    /**
+     * Adds a document with its statistics, or replaces the document with the
+     * same ID.
+     * @param docId The document ID.
+     * @param url The path of the document.
+     * @param title The title of the document.
+     * @param length The number of indexed terms in the document.
+     * @param norm The length of the tf-idf document vector.
+     */
+    public void add(int docId, String url, String title, int length, float norm) {
+        int s = ensureSlot(docId);
+        if (offsets.getInt(s * 4) == ABSENT) {
+            count++;
+        }
+        byte[] u = url.getBytes(StandardCharsets.UTF_8);
+        byte[] t = title.equals(url) ? null : title.getBytes(StandardCharsets.UTF_8);
+        int need = u.length + (t == null ? 0 : t.length);
+        offsets.putInt(s * 4, ABSENT); // its old strings are dropped if the buffer is packed
+        if (stringBytes + need > strings.capacity()) {
+            packStrings(need);
+        }
+        offsets.putInt(s * 4, stringBytes);
+        strings.put(stringBytes, u, 0, u.length);
+        stringBytes += u.length;
+        urlLengths.putInt(s * 4, u.length);
+        if (t == null) {
+            titleLengths.putInt(s * 4, SAME_AS_URL);
+        } else {
+            strings.put(stringBytes, t, 0, t.length);
+            stringBytes += t.length;
+            titleLengths.putInt(s * 4, t.length);
+        }
+        lengths.putInt(s * 4, length);
+        norms.putFloat(s * 4, norm);
+    }
+
+    /**
+     * Removes a document.
+     * @param docId The document ID.
+     * @return True if the document was in the table.
+     */
+    public boolean remove(int docId) {
+        int s = slot(docId);
+        if (s < 0) {
+            return false;
+        }
+        offsets.putInt(s * 4, ABSENT);
+        count--;
+        return true;
+    }
+
+    /**
+     * Makes room for a document ID, moving the slots when it is below base
+     * and doubling the columns when it is past the end.
+     */
+    int ensureSlot(int docId) {
+        if (count == 0 && slots == 0) {
+            base = docId;
+        }
+        if (docId < base) {
+            resize(Math.max(capacity, slots + (base - docId)), base - docId);
+            slots += base - docId;
+            base = docId;
+        }
+        int s = docId - base;
+        if (s >= capacity) {
+            resize(Math.max(capacity * 2, s + 1), 0);
+        }
+        slots = Math.max(slots, s + 1);
+        return s;
+    }
+
+    void resize(int cap, int shift) {
+        ByteBuffer[] old = {lengths, norms, offsets, urlLengths, titleLengths};
+        allocate(cap);
+        ByteBuffer[] now = {lengths, norms, offsets, urlLengths, titleLengths};
+        for (int c = 0; c < old.length; c++) {
+            ByteBuffer src = old[c].duplicate();
+            src.limit(slots * 4).position(0);
+            ByteBuffer dst = now[c].duplicate();
+            dst.position(shift * 4);
+            dst.put(src);
+        }
+    }
+
+    /**
+     * Copies the strings of the documents in the table into a new buffer
+     * with room for at least need more bytes, dropping the strings of
+     * removed and replaced documents.
+     */
+    void packStrings(int need) {
+        int live = 0;
+        for (int s = 0; s < slots; s++) {
+            if (offsets.getInt(s * 4) != ABSENT) {
+                live += stringLength(s);
+            }
+        }
+        ByteBuffer packed = alloc(Math.max(256, (live + need) * 2));
+        int pos = 0;
+        for (int s = 0; s < slots; s++) {
+            int off = offsets.getInt(s * 4);
+            if (off == ABSENT) {
+                continue;
+            }
+            int n = stringLength(s);
+            packed.put(pos, strings, off, n);
+            offsets.putInt(s * 4, pos);
+            pos += n;
+        }
+        strings = packed;
+        stringBytes = pos;
+    }
+
+    int stringLength(int s) {
+        int t = titleLengths.getInt(s * 4);
+        return urlLengths.getInt(s * 4) + (t == SAME_AS_URL ? 0 : t);
+    }
+
+    //---------------------------------------------
+    /**
+     * @return The number of indexed terms in a document, 0 if it is not in the table.
+     */
+    public int length(int docId) {
+        int s = slot(docId);
+        return s < 0 ? 0 : lengths.getInt(s * 4);
+    }
+
+    public void setLength(int docId, int length) {
+        int s = slot(docId);
+        if (s >= 0) {
+            lengths.putInt(s * 4, length);
+        }
+    }
+
+    /**
+     * @return The length of the tf-idf vector of a document, as stored by finalizeIndex.
+     */
+    public float norm(int docId) {
+        int s = slot(docId);
+        return s < 0 ? 0f : norms.getFloat(s * 4);
+    }
+
+    public void setNorm(int docId, float norm) {
+        int s = slot(docId);
+        if (s >= 0) {
+            norms.putFloat(s * 4, norm);
+        }
+    }
+
+    /**
+     * @return The path of a document, null if it is not in the table.
+     */
+    public String url(int docId) {
+        int s = slot(docId);
+        return s < 0 ? null : string(offsets.getInt(s * 4), urlLengths.getInt(s * 4));
+    }
+
+    /**
+     * @return The title of a document, null if it is not in the table.
+     */
+    public String title(int docId) {
+        int s = slot(docId);
+        if (s < 0) {
+            return null;
+        }
+        int t = titleLengths.getInt(s * 4);
+        if (t == SAME_AS_URL) {
+            return url(docId);
+        }
+        return string(offsets.getInt(s * 4) + urlLengths.getInt(s * 4), t);
+    }
+
+    String string(int off, int n) {
+        byte[] b = new byte[n];
+        strings.get(off, b, 0, n);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds a SourceRecord for callers that pass documents around as
+     * objects, such as shards and result pages.
+     * @param docId The document ID.
+     * @return The record, or null if the document is not in the table.
+     */
+    public SourceRecord record(int docId) {
+        int s = slot(docId);
+        if (s < 0) {
+            return null;
+        }
+        return new SourceRecord(docId, url(docId), title(docId), lengths.getInt(s * 4),
+                (double) norms.getFloat(s * 4), "notext");
+    }
+
+    //---------------------------------------------
+    /**
+     * @return The lowest document ID in the table, -1 if it is empty.
+     */
+    public int first() {
+        return next(base - 1);
+    }
+
+    /**
+     * Iterates the table in increasing docId order:
+     * for (int d = t.first(); d >= 0; d = t.next(d))
+     * @param docId The current document ID.
+     * @return The next document ID in the table, -1 if there is none.
+     */
+    public int next(int docId) {
+        for (int s = Math.max(0, docId - base + 1); s < slots; s++) {
+            if (offsets.getInt(s * 4) != ABSENT) {
+                return base + s;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The highest document ID in the table, -1 if it is empty.
+     */
+    public int last() {
+        for (int s = slots - 1; s >= 0; s--) {
+            if (offsets.getInt(s * 4) != ABSENT) {
+                return base + s;
+            }
+        }
+        return -1;
+    }
+
+    //---------------------------------------------
+    /**
+     * Writes the table as one block.
+     * @param out The stream, left open.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(base);
+        out.writeInt(slots);
+        out.writeInt(count);
+        out.writeInt(stringBytes);
+        for (ByteBuffer col : new ByteBuffer[]{lengths, norms, offsets, urlLengths, titleLengths}) {
+            writeBytes(out, col, slots * 4);
+        }
+        writeBytes(out, strings, stringBytes);
+    }
+
+    static void writeBytes(DataOutputStream out, ByteBuffer col, int n) throws IOException {
+        if (col.hasArray()) {
+            out.write(col.array(), col.arrayOffset(), n);
+            return;
+        }
+        byte[] chunk = new byte[Math.min(n, 1 << 16)];
+        for (int pos = 0; pos < n; pos += chunk.length) {
+            int len = Math.min(chunk.length, n - pos);
+            col.get(pos, chunk, 0, len);
+            out.write(chunk, 0, len);
+        }
+    }
+
+    /**
+     * Reads a table written by write, copying the columns with bulk copies.
+     * @param buf The buffer holding the block.
+     * @param pos The offset of the block in the buffer.
+     * @param offHeap True to keep the columns off-heap.
+     * @return The table.
+     */
+    public static DocTable read(ByteBuffer buf, int pos, boolean offHeap) {
+        DocTable t = new DocTable(offHeap);
+        t.base = buf.getInt(pos);
+        int slots = buf.getInt(pos + 4);
+        t.count = buf.getInt(pos + 8);
+        t.stringBytes = buf.getInt(pos + 12);
+        pos += 16;
+        t.allocate(Math.max(16, slots));
+        t.slots = slots;
+        for (ByteBuffer col : new ByteBuffer[]{t.lengths, t.norms, t.offsets, t.urlLengths, t.titleLengths}) {
+            col.put(0, buf, pos, slots * 4);
+            pos += slots * 4;
+        }
+        t.strings = t.alloc(Math.max(256, t.stringBytes));
+        t.strings.put(0, buf, pos, t.stringBytes);
+        return t;
+    }
+
+    /**
+     * @return The size of the block written by write, in bytes.
+     */
+    public int blockSize() {
+        return 16 + slots * 20 + stringBytes;
+    }
+}
@@ -5,17 +5,30 @@
 package invertedIndex;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.Writer;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import static java.lang.Math.log10;
 import static java.lang.Math.sqrt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import java.io.PrintWriter;
 
 /**
@@ -26,17 +39,51 @@ public class Index5 {
 
     //--------------------------------------------
     int N = 0;
-    public Map<Integer, SourceRecord> sources;  // store the doc_id and the file name.
+    public DocTable sources;  // length, norm, URL and title of every doc_id
 
     public HashMap<String, DictEntry> index; // THe inverted index
+
+    // queries hold the read lock, live updates (DirectoryWatcher) the write lock
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    int updates = 0; // changes of the posting lists, checked by lazy SearchResults
+
+    // per document statistics computed by finalizeIndex(), indexed by docId - docBase
+    static final double K1 = 1.2;
+    static final double B = 0.75;
+    int docBase = 0;
+    float[] docNorms = null;   // length of the tf-idf document vector
+    float[] bm25Norms = null;  // K1 * ((1 - B) + B * length / avgLength)
+    double avgLength = 0;
+    double[] normSums = null;  // per document S0, S1, S2 of the norm, at 3 * (docId - docBase), see computeStatistics
+    int normsLastDoc = -1;     // last docId counted in normSums
+    HashSet<String> changedTerms = null; // terms whose postings changed since, null forces a full computation
+    int statsN = 0;                          // collection statistics passed to the last finalizeIndex,
+    Map<String, Integer> statsDf = null;     // null when the local doc_freq is used
+
+    String docStorePath = null;
+    public DocStore docStore = null; // text of the documents, used for snippets
+    SnippetGenerator snippets = new SnippetGenerator(this);
+
+    double bitmapThreshold = 1.0 / 16; // terms in this fraction of the documents also get a bitmap
+    boolean packPostings = true;     // terms with a full block are stored as PackedPostings
+
+    int fuzzyEdits = 0;              // 0 disables spelling correction of query terms
+    int fuzzyMinLength = 4;          // shorter words are not corrected, words below 8 letters within 1 edit
+    SpellingIndex spelling = null;   // built on first use
+
+    int renumbered = 0;              // times documents got other docIds, by a reorder or a load
+
+    BiwordIndex biwords = null;      // adjacent term pairs, null when disabled
+    String prevTerm = null;          // last term indexed in document prevFid
+    int prevFid = -1;
     //--------------------------------------------
 
     /**
      * Constructor for Index5 class.
-     * Initializes the sources and index HashMaps.
+     * Initializes the document table and the index HashMap.
      */
     public Index5() {
-        sources = new HashMap<Integer, SourceRecord>();
+        sources = new DocTable();
         index = new HashMap<String, DictEntry>();
     }
 
@@ -75,7 +122,7 @@ public class Index5 {
             Map.Entry pair = (Map.Entry) it.next();
             DictEntry dd = (DictEntry) pair.getValue();
             System.out.print("** [" + pair.getKey() + "," + dd.doc_freq + "]       =--> ");
-            printPostingList(dd.pList);
+            printPostingList(dd.postings());
         }
         System.out.println("------------------------------------------------------");
         System.out.println("*** Number of terms = " + index.size());
@@ -87,22 +134,260 @@ public class Index5 {
      * @param files An array of file names to be indexed.
      */
     public void buildIndex(String[] files) {
-        int fid = 0;
-        for (String fileName : files) {
-            try (BufferedReader file = new BufferedReader(new FileReader(fileName))) {
-                if (!sources.containsKey(fileName)) {
-                    sources.put(fid, new SourceRecord(fid, fileName, fileName, "notext"));
-                }
+        buildIndex(files, 0);
+    }
+
+    /**
+     * Builds the inverted index from a list of files, numbering the documents
+     * from a given first document ID. Shards use this to own a docId range.
+     * @param files An array of file names to be indexed.
+     * @param firstDocId The document ID given to the first file.
+     */
+    public void buildIndex(String[] files, int firstDocId) {
+        buildIndex(IntStream.range(0, files.length).mapToObj(i -> new CollectionScanner.Doc(firstDocId + i, files[i])));
+    }
+
+    /**
+     * Builds the inverted index from documents with their docIds, for
+     * example the stream of a CollectionScanner. Files are read one at a
+     * time as the stream is consumed, as UTF-8 like everywhere else.
+     * @param docs The documents, in increasing docId order.
+     */
+    public void buildIndex(Stream<CollectionScanner.Doc> docs) {
+        DocStoreWriter docWriter = null;
+        if (docStorePath != null) {
+            try {
+                closeDocStore();
+                docWriter = new DocStoreWriter(docStorePath);
+            } catch (IOException e) {
+                System.out.println("Cannot create document store " + docStorePath + ": " + e.getMessage());
+            }
+        }
+        int lastFid = Integer.MIN_VALUE;
+        Iterator<CollectionScanner.Doc> it = docs.iterator();
+        while (it.hasNext()) {
+            CollectionScanner.Doc doc = it.next();
+            int fid = doc.docId;
+            String fileName = doc.path;
+            if (fid <= lastFid) { // postings are appended, so docIds must increase
+                System.out.println("File " + fileName + " has docId " + fid + " after " + lastFid + ". Skip it");
+                continue;
+            }
+            lastFid = fid;
+            try (BufferedReader file = new BufferedReader(new FileReader(fileName, StandardCharsets.UTF_8))) {
+                sources.add(fid, fileName, fileName);
+                StringBuilder text = docWriter == null ? null : new StringBuilder();
                 String ln;
                 int flen = 0;
                 while ((ln = file.readLine()) != null) {
                     flen += indexOneLine(ln, fid); // Process each line and update the index
+                    if (text != null) {
+                        text.append(ln).append('\n');
+                    }
+                }
+                sources.setLength(fid, flen); // Update the length of the document
+                if (docWriter != null) {
+                    docWriter.add(fid, text.toString());
                 }
-                sources.get(fid).length = flen; // Update the length of the document
             } catch (IOException e) {
                 System.out.println("File " + fileName + " not found. Skip it");
             }
-            fid++;
+        }
+        if (docWriter != null) {
+            try {
+                docWriter.close();
+                docStore = new DocStore(docStorePath);
+            } catch (IOException e) {
+                System.out.println("Cannot write document store " + docStorePath + ": " + e.getMessage());
+            }
+        }
+        invalidateStatistics();
+        if (biwords != null) {
+            biwords.build(this);
+        }
+    }
+
+    /**
+     * Replaces the documents and the dictionary under the write lock, for
+     * example with a loaded index. Everything derived from the old content
+     * is dropped: the statistics and the collection statistics of the last
+     * finalizeIndex, the spelling index, and the document store, whose
+     * docIds belong to the old content (openDocStore opens the store of the
+     * new one). The bitmaps and packed lists belonged to the old entries.
+     * The statistics of the new content are computed under the same lock,
+     * then the biword pairs, if any, are built again. Must not be called
+     * while holding a lock of the index.
+     * @param docs The new document table.
+     * @param dict The new dictionary.
+     */
+    void replace(DocTable docs, HashMap<String, DictEntry> dict) {
+        lock.writeLock().lock();
+        try {
+            sources = docs;
+            index = dict;
+            N = docs.size();
+            statsN = 0;
+            statsDf = null;
+            prevTerm = null;
+            prevFid = -1;
+            renumbered++;
+            try {
+                closeDocStore();
+            } catch (IOException e) {
+                System.out.println("Cannot close document store " + docStorePath + ": " + e.getMessage());
+            }
+            invalidateStatistics();
+            computeStatistics(N, null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (biwords != null) {
+            biwords.build(this);
+        }
+    }
+
+    //-----------------------------------------------
+    /**
+     * Makes buildIndex also write the text of every document into a
+     * block-compressed document store, used to render snippets.
+     * @param path The document store file, or null to stop storing text.
+     */
+    public void setDocStore(String path) {
+        docStorePath = path;
+    }
+
+    /**
+     * Opens an existing document store, for example next to a loaded index.
+     * @param path The document store file.
+     */
+    public void openDocStore(String path) throws IOException {
+        closeDocStore();
+        docStorePath = path;
+        docStore = new DocStore(path);
+    }
+
+    void closeDocStore() throws IOException {
+        if (docStore != null) {
+            docStore.close();
+            docStore = null;
+        }
+    }
+
+    //-----------------------------------------------
+    /**
+     * Indexes one document given as text. The docId must be larger than
+     * every docId already in the index. The caller holds the write lock
+     * when queries may run concurrently.
+     * @param fid The document ID.
+     * @param fileName The path of the document.
+     * @param text The content of the document.
+     */
+    public void addDocument(int fid, String fileName, String text) {
+        sources.add(fid, fileName, fileName);
+        int flen = 0;
+        for (String ln : text.split("\r?\n")) {
+            flen += indexOneLine(ln, fid);
+        }
+        sources.setLength(fid, flen);
+        invalidateStatistics();
+    }
+
+    /**
+     * Removes a document from the index. Terms whose posting list becomes
+     * empty are removed from the dictionary. The caller holds the write lock
+     * when queries may run concurrently.
+     * @param fid The document ID.
+     * @param terms The terms of the document, or null to scan the whole dictionary.
+     */
+    public void removeDocument(int fid, Collection<String> terms) {
+        if (!sources.remove(fid)) {
+            return;
+        }
+        Collection<String> candidates = terms == null ? new ArrayList<String>(index.keySet()) : terms;
+        for (String term : candidates) {
+            DictEntry entry = index.get(term);
+            if (entry == null || (entry.packed != null && entry.packed.dtf(fid) == 0)) {
+                continue;
+            }
+            entry.unpack();
+            Posting prev = null;
+            Posting p = entry.pList;
+            while (p != null && p.docId < fid) {
+                prev = p;
+                p = p.next;
+            }
+            if (p == null || p.docId != fid) {
+                continue;
+            }
+            if (prev == null) {
+                entry.pList = p.next;
+            } else {
+                prev.next = p.next;
+            }
+            if (entry.last == p) {
+                entry.last = prev;
+            }
+            entry.doc_freq--;
+            entry.term_freq -= p.dtf;
+            entry.postingsChanged();
+            termChanged(term, -1);
+            if (entry.pList == null) {
+                index.remove(term);
+            }
+        }
+        if (biwords != null) {
+            biwords.removeDocument(fid);
+        }
+        invalidateStatistics();
+    }
+
+    /**
+     * Reads the text of a document from the document store, or else from
+     * its file.
+     * @param docId The document ID.
+     * @return The text, or null if it cannot be read.
+     */
+    String documentText(int docId) {
+        return documentText(docStore, docId, sources.url(docId));
+    }
+
+    /**
+     * Reads the text of a document from a document store, or else from its
+     * file, without touching the index; used to read texts without a lock.
+     * @param store The document store, may be null.
+     * @param docId The document ID.
+     * @param url The path of the document, null if it is not indexed.
+     * @return The text, or null if it cannot be read.
+     */
+    static String documentText(DocStore store, int docId, String url) {
+        try {
+            String text = store == null ? null : store.get(docId);
+            if (text == null && url != null) {
+                text = new String(Files.readAllBytes(Paths.get(url)), StandardCharsets.UTF_8);
+            }
+            return text;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds a snippet of a document around the query terms, reading the
+     * text from the document store.
+     * @param docId The document ID.
+     * @param terms The processed query terms.
+     * @return The snippet, or null if no document store is open.
+     */
+    public String snippet(int docId, List<String> terms) {
+        if (docStore == null) {
+            return null;
+        }
+        try {
+            String text = docStore.get(docId);
+            return text == null ? null : snippets.snippet(text, terms);
+        } catch (IOException e) {
+            System.out.println("Cannot read document " + docId + ": " + e.getMessage());
+            return null;
         }
     }
 
@@ -111,26 +396,40 @@ public class Index5 {
      * Indexes a single line of text from a document.
      * @param ln The line of text to index.
      * @param fid The document ID.
-     * @return The number of words indexed in this line.
+     * @return The number of terms indexed from this line, stop words excluded.
      */
     public int indexOneLine(String ln, int fid) {
         int flen = 0;
 
         String[] words = ln.split("\\W+");
-        flen += words.length;
         for (String word : words) {
             word = word.toLowerCase();
             if (stopWord(word)) {
                 continue;
             }
             word = stemWord(word);
+            flen++; // only indexed terms count towards the document length
+            if (biwords != null) {
+                if (prevFid != fid) {
+                    prevFid = fid;
+                    prevTerm = null;
+                }
+                if (prevTerm != null) {
+                    biwords.add(prevTerm, word, fid);
+                }
+                prevTerm = word;
+            }
             // check to see if the word is not in the dictionary
             // if not add it
             if (!index.containsKey(word)) {
                 index.put(word, new DictEntry());
             }
-            // add document id to the posting list
-            if (!index.get(word).postingListContains(fid)) {
+            // add document id to the posting list; documents are indexed in
+            // increasing docId order, so only the last posting can be this one
+            DictEntry entry = index.get(word);
+            entry.postingsChanged();
+            termChanged(word, fid);
+            if (entry.last == null || entry.last.docId != fid) {
                 index.get(word).doc_freq += 1; //set doc freq to the number of doc that contain the term
                 if (index.get(word).pList == null) {
                     index.get(word).pList = new Posting(fid);
@@ -186,8 +485,21 @@ public class Index5 {
      * @return A new posting list containing the intersection of the two input lists.
      */
     Posting intersect(Posting pL1, Posting pL2) {
+        return intersect(pL1, pL2, null);
+    }
+
+    /**
+     * Intersects two posting lists and records the work done.
+     * @param pL1 The first posting list.
+     * @param pL2 The second posting list.
+     * @param step Receives the scanned and skipped counts, may be null.
+     * @return A new posting list containing the intersection of the two input lists.
+     */
+    Posting intersect(Posting pL1, Posting pL2, QueryExplain.Step step) {
         Posting answer = null;
         Posting last = null;
+        long scanned = 0;
+        long skipped = 0;
 
         while (pL1 != null && pL2 != null) {
             if (pL1.docId == pL2.docId) {
@@ -201,118 +513,1234 @@ public class Index5 {
                 }
                 pL1 = pL1.next;
                 pL2 = pL2.next;
+                scanned += 2;
             } else if (pL1.docId < pL2.docId) {
                 pL1 = pL1.next;
+                scanned++;
+                skipped++;
             } else {
                 pL2 = pL2.next;
+                scanned++;
+                skipped++;
+            }
+        }
+
+        if (step != null) {
+            step.scanned += scanned;
+            step.skipped += skipped;
+        }
+        return answer;
+    }
+
+    //----------------------------------------------------------------------------
+    /**
+     * Splits a query into terms and applies the same stop-word and stemming
+     * rules that were used while indexing. Duplicate terms are dropped.
+     * @param phrase The query text.
+     * @return The processed query terms in query order.
+     */
+    public List<String> queryTerms(String phrase) {
+        List<String> terms = new ArrayList<String>();
+        for (String word : phrase.split("\\W+")) {
+            word = word.toLowerCase();
+            if (stopWord(word)) {
+                continue;
+            }
+            word = stemWord(word);
+            if (!terms.contains(word)) {
+                terms.add(word);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Copies a posting list, so that a caller can walk it after the read
+     * lock was released.
+     * @param p The head of a posting list.
+     * @return The head of the copy.
+     */
+    static Posting copy(Posting p) {
+        Posting head = null;
+        Posting last = null;
+        for (; p != null; p = p.next) {
+            Posting n = new Posting(p.docId, p.dtf);
+            if (head == null) {
+                head = n;
+            } else {
+                last.next = n;
+            }
+            last = n;
+        }
+        return head;
+    }
+
+    /**
+     * Counts the postings in a posting list.
+     * @param p The head of the posting list.
+     * @return The number of postings.
+     */
+    static int postingLength(Posting p) {
+        int n = 0;
+        while (p != null) {
+            n++;
+            p = p.next;
+        }
+        return n;
+    }
+
+    //----------------------------------------------------------------------------
+    /**
+     * Evaluates a Boolean AND over processed query terms.
+     * @param terms The processed query terms.
+     * @return The posting list of the documents containing every term.
+     */
+    public Posting and(List<String> terms) {
+        return and(terms, null);
+    }
+
+    /**
+     * Evaluates a Boolean AND over processed query terms. Posting lists are
+     * intersected starting from the term with the lowest doc_freq so that the
+     * running result stays as short as possible.
+     * @param terms The processed query terms.
+     * @param explain Receives statistics, order, per step counts and timings; may be null.
+     * @return The posting list of the documents containing every term.
+     */
+    Posting and(List<String> terms, QueryExplain explain) {
+        lock.readLock().lock();
+        try {
+            long t1 = System.nanoTime();
+            // Look up every term, a missing term means no document can match
+            List<DictEntry> entries = new ArrayList<DictEntry>();
+            boolean missing = terms.isEmpty();
+            for (String term : terms) {
+                DictEntry entry = index.get(term);
+                if (explain != null) {
+                    QueryExplain.TermStat ts = new QueryExplain.TermStat(term);
+                    if (entry != null) {
+                        ts.found = true;
+                        ts.doc_freq = entry.doc_freq;
+                        ts.term_freq = entry.term_freq;
+                        ts.postingLength = entry.length();
+                    }
+                    explain.termStats.add(ts);
+                }
+                if (entry == null) {
+                    missing = true;
+                    if (explain == null) {
+                        break;
+                    }
+                }
+                entries.add(entry);
+            }
+            long t2 = System.nanoTime();
+            if (explain != null) {
+                explain.lookupNanos += t2 - t1;
+            }
+            if (missing) {
+                return null;
+            }
+
+            // Intersect the shortest lists first
+            Integer[] order = new Integer[terms.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Integer.compare(entries.get(a).doc_freq, entries.get(b).doc_freq));
+            if (explain != null) {
+                for (int i : order) {
+                    explain.order.add(terms.get(i));
+                }
             }
+
+            // The running result stays a bitmap while only dense terms were met
+            DictEntry first = entries.get(order[0]);
+            // a packed list is decoded into a new list, a single linked list is copied
+            Posting posting = first.bitmap != null ? null : order.length == 1 && first.packed == null ? copy(first.pList) : first.postings();
+            BitmapPostings bits = first.bitmap;
+            int runLength = explain == null ? 0 : first.doc_freq;
+            for (int i = 1; i < order.length && (posting != null || bits != null); i++) {
+                DictEntry entry = entries.get(order[i]);
+                QueryExplain.Step step = null;
+                long s = 0;
+                if (explain != null) {
+                    step = new QueryExplain.Step(terms.get(order[i]));
+                    step.leftLength = runLength;
+                    step.rightLength = entry.length();
+                    s = System.nanoTime();
+                }
+                String method;
+                if (bits != null && entry.bitmap != null) {
+                    bits = bits.and(entry.bitmap); // word-level AND
+                    method = "bitmap";
+                } else if (bits != null) {
+                    posting = bits.filter(entry.postings(), step);
+                    bits = null;
+                    method = "probe";
+                } else if (entry.bitmap != null) {
+                    posting = entry.bitmap.filter(posting, step);
+                    method = "probe";
+                } else if (entry.packed != null) {
+                    posting = entry.packed.filter(posting, step); // skips and decodes whole blocks
+                    method = "packed";
+                } else {
+                    posting = intersect(posting, entry.pList, step);
+                    method = "merge";
+                }
+                if (explain != null) {
+                    step.nanos = System.nanoTime() - s;
+                    step.method = method;
+                    step.produced = runLength = bits != null ? bits.cardinality() : postingLength(posting);
+                    explain.steps.add(step);
+                }
+            }
+            if (bits != null) {
+                posting = bits.toPostings();
+            }
+            if (explain != null) {
+                explain.intersectNanos += System.nanoTime() - t2;
+            }
+            return posting;
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
+    //----------------------------------------------------------------------------
+    /**
+     * Evaluates a Boolean OR over processed query terms. When a dense term
+     * has a bitmap the union is built as a bitmap, otherwise the posting
+     * lists are merged.
+     * @param terms The processed query terms.
+     * @return The posting list of the documents containing any term.
+     */
+    public Posting or(List<String> terms) {
+        lock.readLock().lock();
+        try {
+            List<DictEntry> entries = new ArrayList<DictEntry>();
+            boolean dense = false;
+            for (String term : terms) {
+                DictEntry entry = index.get(term);
+                if (entry != null) {
+                    entries.add(entry);
+                    dense |= entry.bitmap != null;
+                }
+            }
+            if (dense) {
+                BitmapPostings bits = new BitmapPostings();
+                for (DictEntry entry : entries) {
+                    bits = entry.bitmap != null ? bits.or(entry.bitmap) : bits.or(entry.postings());
+                }
+                return bits.toPostings();
+            }
+            Posting posting = null;
+            for (DictEntry entry : entries) {
+                posting = union(posting, entry.postings());
+            }
+            return posting;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Merges two posting lists into the list of their document IDs.
+     * @param pL1 The first posting list.
+     * @param pL2 The second posting list.
+     * @return A new posting list containing the union of the two input lists.
+     */
+    Posting union(Posting pL1, Posting pL2) {
+        Posting answer = null;
+        Posting last = null;
+        while (pL1 != null || pL2 != null) {
+            int id;
+            if (pL2 == null || (pL1 != null && pL1.docId < pL2.docId)) {
+                id = pL1.docId;
+                pL1 = pL1.next;
+            } else if (pL1 == null || pL2.docId < pL1.docId) {
+                id = pL2.docId;
+                pL2 = pL2.next;
+            } else {
+                id = pL1.docId;
+                pL1 = pL1.next;
+                pL2 = pL2.next;
+            }
+            if (answer == null) {
+                answer = new Posting(id);
+                last = answer;
+            } else {
+                last.next = new Posting(id);
+                last = last.next;
+            }
+        }
         return answer;
     }
 
+    //----------------------------------------------------------------------------
     /**
      * Finds documents that contain a given phrase.
      * @param phrase The phrase to search for.
      * @return A string listing the documents containing the phrase.
      */
     public String find_24_01(String phrase) {
-        String result = "";
-        String[] words = phrase.split("\\W+");
-        int len = words.length;
+        return find_24_01(phrase, null);
+    }
+
+    /**
+     * Finds documents that contain all terms of a phrase.
+     * @param phrase The phrase to search for.
+     * @param explain Receives terms, statistics, intersection order, per step
+     *                counts and phase timings; may be null.
+     * @return A string listing the documents containing the phrase.
+     */
+    public String find_24_01(String phrase, QueryExplain explain) {
+        lock.readLock().lock();
+        try {
+            long t0 = System.nanoTime();
+            List<String> terms = queryTerms(phrase);
+            List<String> corrected = correct(terms, explain);
+            String header = "";
+            if (!corrected.equals(terms)) {
+                header = "Showing results for: " + String.join(" ", corrected) + "\n";
+                terms = corrected;
+            }
+            if (explain != null) {
+                explain.query = phrase;
+                explain.rawWords.addAll(Arrays.asList(phrase.split("\\W+")));
+                explain.terms.addAll(terms);
+                explain.parseNanos += System.nanoTime() - t0;
+            }
+
+            Posting posting = and(terms, explain);
+            long t1 = System.nanoTime();
 
-        // Check if the first word exists in the index
-        if (!index.containsKey(words[0].toLowerCase())) {
-            return "No documents found for the phrase: " + phrase;
+            // Collect results from the posting list
+            StringBuilder result = new StringBuilder();
+            int hits = 0;
+            while (posting != null) {
+                result.append('\t').append(posting.docId).append(" - ").append(sources.title(posting.docId))
+                        .append(" - ").append(sources.length(posting.docId)).append('\n');
+                String snippet = snippet(posting.docId, terms);
+                if (snippet != null) {
+                    result.append("\t\t").append(snippet).append('\n');
+                }
+                posting = posting.next;
+                hits++;
+            }
+            if (explain != null) {
+                explain.results = hits;
+                explain.renderNanos += System.nanoTime() - t1;
+            }
+
+            // If no results were found, return a message
+            if (hits == 0) {
+                return header + "No documents found for the phrase: " + phrase;
+            }
+
+            return header + result.toString();
+        } finally {
+            lock.readLock().unlock();
         }
+    }
+
+    //----------------------------------------------------------------------------
+    /**
+     * Adds an index of pairs of adjacent terms, used by findPhrase. The
+     * pairs are built from the document texts now if the index holds
+     * documents, else by buildIndex; then indexOneLine records the pairs of
+     * new documents. Must not be called while holding a lock of the index.
+     * @param bw The pair index with its inclusion thresholds, or null to drop it.
+     */
+    public void setBiwords(BiwordIndex bw) {
+        lock.writeLock().lock();
+        try {
+            biwords = bw;
+            prevTerm = null;
+            prevFid = -1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (bw != null && !sources.isEmpty()) {
+            bw.build(this);
+        }
+    }
 
-        Posting posting = index.get(words[0].toLowerCase()).pList;
-        int i = 1;
-        while (i < len) {
-            // Check if the current word exists in the index
-            if (!index.containsKey(words[i].toLowerCase())) {
-                return "No documents found for the phrase: " + phrase;
+    /**
+     * Splits a phrase into terms like queryTerms, keeping repeated terms.
+     * @param phrase The phrase text.
+     * @return The processed terms in phrase order.
+     */
+    public List<String> phraseTerms(String phrase) {
+        List<String> terms = new ArrayList<String>();
+        for (String word : phrase.split("\\W+")) {
+            word = word.toLowerCase();
+            if (!stopWord(word)) {
+                terms.add(stemWord(word));
             }
-            posting = intersect(posting, index.get(words[i].toLowerCase()).pList);
-            i++;
         }
+        return terms;
+    }
+
+    /**
+     * Finds the documents in which the terms of a phrase follow each other,
+     * stop words skipped as while indexing.
+     * @param phrase The phrase to search for.
+     * @return The posting list of the matching documents.
+     */
+    public Posting findPhrase(String phrase) {
+        return phrase(phraseTerms(phrase), null);
+    }
+
+    /**
+     * Like findPhrase, also telling which results could not be checked.
+     * @param phrase The phrase to search for.
+     * @param unverified Receives the docIds of the results that contain the
+     *        terms but whose text is not in the document store, so the
+     *        order of the terms was not checked.
+     * @return The posting list of the matching documents.
+     */
+    public Posting findPhrase(String phrase, List<Integer> unverified) {
+        return phrase(phraseTerms(phrase), unverified);
+    }
+
+    Posting phrase(List<String> terms) {
+        return phrase(terms, null);
+    }
 
-        // Collect results from the posting list
-        while (posting != null) {
-            result += "\t" + posting.docId + " - " + sources.get(posting.docId).title + " - " + sources.get(posting.docId).length + "\n";
-            posting = posting.next;
+    /**
+     * Evaluates a phrase over processed terms. Adjacent pairs covered by the
+     * biword index contribute their pair list, the other terms their own
+     * list; the shortest lists are intersected first. A two-term phrase
+     * answered from its pair list is exact, otherwise the remaining
+     * candidates are checked against the document text. A candidate whose
+     * text is not in the document store or cannot be read, or every
+     * candidate when there is no document store, cannot be checked: it is
+     * returned and reported as unverified. Pairs are used only once they
+     * were built for the current dictionary.
+     * @param terms The processed phrase terms, in order.
+     * @param unverified Receives the unchecked docIds, may be null.
+     * @return The posting list of the matching documents.
+     */
+    Posting phrase(List<String> terms, List<Integer> unverified) {
+        lock.readLock().lock();
+        try {
+            if (terms.isEmpty()) {
+                return null;
+            }
+            BiwordIndex bw = biwords != null && biwords.builtFor(this) ? biwords : null;
+            List<Posting> lists = new ArrayList<Posting>();
+            List<Integer> dfs = new ArrayList<Integer>();
+            boolean[] covered = new boolean[terms.size()];
+            for (int i = 0; bw != null && i + 1 < terms.size(); i++) {
+                String t1 = terms.get(i);
+                String t2 = terms.get(i + 1);
+                if (bw.covers(t1, t2)) {
+                    Posting p = bw.postings(t1, t2);
+                    if (p == null) {
+                        return null;
+                    }
+                    lists.add(p);
+                    dfs.add(bw.docFreq(t1, t2));
+                    covered[i] = true;
+                    covered[i + 1] = true;
+                }
+            }
+            for (int i = 0; i < terms.size(); i++) {
+                if (!covered[i]) {
+                    DictEntry entry = index.get(terms.get(i));
+                    if (entry == null) {
+                        return null;
+                    }
+                    lists.add(entry.postings());
+                    dfs.add(entry.doc_freq);
+                }
+            }
+            Integer[] order = new Integer[lists.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Integer.compare(dfs.get(a), dfs.get(b)));
+            // a single list is a live posting list, it is copied
+            Posting candidates = order.length == 1 ? copy(lists.get(order[0])) : lists.get(order[0]);
+            for (int i = 1; i < order.length && candidates != null; i++) {
+                candidates = intersect(candidates, lists.get(order[i]));
+            }
+            boolean exact = terms.size() == 1 || (terms.size() == 2 && covered[0]);
+            if (exact) {
+                return candidates;
+            }
+            if (docStore == null) {
+                for (Posting p = candidates; p != null && unverified != null; p = p.next) {
+                    unverified.add(p.docId);
+                }
+                return candidates;
+            }
+            // check the word positions of the candidates that are left
+            Posting answer = null;
+            Posting last = null;
+            for (Posting p = candidates; p != null; p = p.next) {
+                String text;
+                try {
+                    text = docStore.get(p.docId);
+                } catch (IOException e) {
+                    System.out.println("Cannot read document " + p.docId + ": " + e.getMessage());
+                    text = null;
+                }
+                if (text == null) {
+                    // indexed without its text, for example by the watcher, or unreadable
+                    if (unverified != null) {
+                        unverified.add(p.docId);
+                    }
+                } else if (!containsPhrase(text, terms)) {
+                    continue;
+                }
+                if (answer == null) {
+                    answer = new Posting(p.docId);
+                    last = answer;
+                } else {
+                    last.next = new Posting(p.docId);
+                    last = last.next;
+                }
+            }
+            return answer;
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        // If no results were found, return a message
-        if (result.isEmpty()) {
-            return "No documents found for the phrase: " + phrase;
+    /**
+     * Checks whether the processed terms occur one after the other in a text.
+     * @param text The text of a document.
+     * @param terms The processed phrase terms.
+     * @return True if the phrase occurs in the text.
+     */
+    boolean containsPhrase(String text, List<String> terms) {
+        List<String> words = phraseTerms(text);
+        for (int i = 0; i + terms.size() <= words.size(); i++) {
+            int j = 0;
+            while (j < terms.size() && words.get(i + j).equals(terms.get(j))) {
+                j++;
+            }
+            if (j == terms.size()) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        return result;
+    //----------------------------------------------------------------------------
+    /**
+     * Evaluates a Boolean AND query lazily: posting lists are walked only as
+     * far as the results are read. The results take the read lock while they
+     * are read and follow later updates, see {@link SearchResults}.
+     * @param phrase The query text.
+     * @return The matching documents, in increasing docId order, with score 1.
+     */
+    public SearchResults search(String phrase) {
+        lock.readLock().lock();
+        try {
+            return new SearchResults(this, correct(queryTerms(phrase), null));
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    //---------------------------------
     /**
-     * Sorts an array of words using bubble sort.
-     * @param words The array of words to sort.
-     * @return The sorted array of words.
+     * Ranks documents against a query by cosine similarity.
+     * @param phrase The query text.
+     * @param k The number of documents to rank.
+     * @return The k best documents, highest score first.
+     */
+    public SearchResults searchRanked(String phrase, int k) {
+        return new SearchResults(this, queryTerms(phrase), rankedSearch(phrase, k));
+    }
+
+    /**
+     * Returns one page of the documents that contain all terms of a phrase.
+     * @param phrase The query text.
+     * @param offset The number of results to skip.
+     * @param limit The maximum number of results on the page.
+     * @return The hits of the page, with their metadata.
+     */
+    public List<SearchResults.Hit> find(String phrase, int offset, int limit) {
+        return search(phrase).page(offset, limit);
+    }
+
+    //----------------------------------------------------------------------------
+    /**
+     * Returns the number of documents that contain a term.
+     * @param term The processed term.
+     * @return The document frequency, 0 if the term is not in the dictionary.
+     */
+    public int docFreq(String term) {
+        lock.readLock().lock();
+        try {
+            DictEntry entry = index.get(term);
+            return entry == null ? 0 : entry.doc_freq;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The doc_freq of every term, read under the caller's hold of the read lock.
+     */
+    int[] docFreqs(List<String> terms) {
+        int[] df = new int[terms.size()];
+        for (int i = 0; i < df.length; i++) {
+            DictEntry entry = index.get(terms.get(i));
+            df[i] = entry == null ? 0 : entry.doc_freq;
+        }
+        return df;
+    }
+
+    /**
+     * Ranks documents against a query with tf-idf weights computed from this
+     * index only. The doc_freq values are read under the same hold of the
+     * read lock as the postings they weight.
+     * @param phrase The query text.
+     * @param k The number of documents to return.
+     * @return The k best documents, highest score first.
+     */
+    public List<ScoredDoc> rankedSearch(String phrase, int k) {
+        List<String> terms = queryTerms(phrase);
+        readLockFinalized();
+        try {
+            return rankedLocked(terms, docFreqs(terms), N > 0 ? N : sources.size(), k);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Ranks documents against processed query terms by the cosine of their
+     * tf-idf vectors, using caller supplied collection statistics. A shard
+     * passes the collection-wide doc_freq and document count so that its
+     * scores are comparable with other shards. Document vector lengths are
+     * read from the table built by {@link #finalizeIndex()}.
+     * @param terms The processed query terms.
+     * @param df The collection-wide doc_freq of every term.
+     * @param n The number of documents in the whole collection.
+     * @param k The number of documents to return.
+     * @return The k best documents of this index, highest score first.
+     */
+    public List<ScoredDoc> rankedSearch(List<String> terms, int[] df, int n, int k) {
+        readLockFinalized();
+        try {
+            return rankedLocked(terms, df, n, k);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Scores for rankedSearch, the caller holds the read lock on a finalized
+     * index. Scores are summed in an array indexed like docNorms, without
+     * boxing or hashing a posting.
+     */
+    List<ScoredDoc> rankedLocked(List<String> terms, int[] df, int n, int k) {
+        double[] acc = new double[docNorms.length]; // indexed by docId - docBase
+        boolean[] hit = new boolean[acc.length];
+        for (int i = 0; i < terms.size(); i++) {
+            DictEntry entry = index.get(terms.get(i));
+            if (entry == null || df[i] == 0) {
+                continue;
+            }
+            double idf = log10((double) n / df[i]);
+            forEachPosting(entry, (docId, dtf) -> {
+                int d = docId - docBase;
+                acc[d] += (1 + log10(dtf)) * idf;
+                hit[d] = true;
+            });
+        }
+        for (int d = 0; d < acc.length; d++) {
+            if (hit[d]) {
+                acc[d] = docNorms[d] > 0 ? acc[d] / docNorms[d] : 0.0;
+            }
+        }
+        return ScoredDoc.topK(acc, hit, docBase, k);
+    }
+
+    /**
+     * Ranks documents against a query with BM25 computed from this index
+     * only, reading the doc_freq values under the same hold of the read lock.
+     * @param phrase The query text.
+     * @param k The number of documents to return.
+     * @return The k best documents, highest score first.
+     */
+    public List<ScoredDoc> bm25Search(String phrase, int k) {
+        List<String> terms = queryTerms(phrase);
+        readLockFinalized();
+        try {
+            return bm25Locked(terms, docFreqs(terms), N > 0 ? N : sources.size(), k);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Ranks documents against processed query terms with BM25. The length
+     * normalization of every document is read from the table built by
+     * {@link #finalizeIndex()}.
+     * @param terms The processed query terms.
+     * @param df The collection-wide doc_freq of every term.
+     * @param n The number of documents in the whole collection.
+     * @param k The number of documents to return.
+     * @return The k best documents of this index, highest score first.
+     */
+    public List<ScoredDoc> bm25Search(List<String> terms, int[] df, int n, int k) {
+        readLockFinalized();
+        try {
+            return bm25Locked(terms, df, n, k);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Scores for bm25Search, the caller holds the read lock on a finalized
+     * index, summed in an array indexed like bm25Norms.
+     */
+    List<ScoredDoc> bm25Locked(List<String> terms, int[] df, int n, int k) {
+        double[] acc = new double[bm25Norms.length]; // indexed by docId - docBase
+        boolean[] hit = new boolean[acc.length];
+        for (int i = 0; i < terms.size(); i++) {
+            DictEntry entry = index.get(terms.get(i));
+            if (entry == null || df[i] == 0) {
+                continue;
+            }
+            double idf = Math.log((n - df[i] + 0.5) / (df[i] + 0.5) + 1);
+            forEachPosting(entry, (docId, dtf) -> {
+                int d = docId - docBase;
+                acc[d] += idf * dtf * (K1 + 1) / (dtf + bm25Norms[d]);
+                hit[d] = true;
+            });
+        }
+        return ScoredDoc.topK(acc, hit, docBase, k);
+    }
+
+    /**
+     * Receives the postings of a term.
+     */
+    interface PostingVisitor {
+        void visit(int docId, int dtf);
+    }
+
+    /**
+     * Visits the postings of a term in docId order. A packed term is
+     * decoded a block of docIds and dtf values at a time.
+     */
+    static void forEachPosting(DictEntry entry, PostingVisitor v) {
+        PackedPostings packed = entry.packed;
+        if (packed == null) {
+            for (Posting p = entry.pList; p != null; p = p.next) {
+                v.visit(p.docId, p.dtf);
+            }
+            return;
+        }
+        int[] docs = new int[PackedPostings.BLOCK];
+        int[] tfs = new int[PackedPostings.BLOCK];
+        for (int b = 0; b < packed.blocks(); b++) {
+            int len = packed.decodeDocs(b, docs);
+            packed.decodeTfs(b, tfs);
+            for (int i = 0; i < len; i++) {
+                v.visit(docs[i], tfs[i]);
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------
+    /**
+     * Computes the per document statistics used by ranking: the length of
+     * every tf-idf document vector and the BM25 length normalization. Call it
+     * after buildIndex or load, and again after the index changes. The
+     * dictionary is scanned in parallel, every worker accumulating into its
+     * own array. The norms are also copied into the document table so that
+     * store writes them.
+     */
+    public void finalizeIndex() {
+        finalizeIndex(N > 0 ? N : sources.size(), null);
+    }
+
+    /**
+     * Computes the per document statistics with collection-wide statistics,
+     * so that the norms of a shard match the idf used at query time. The
+     * statistics are kept: when an update drops the norms, queries compute
+     * them again with the same collection-wide doc_freq. Runs under the
+     * write lock, so it must not be called while holding the read lock.
+     * @param n The number of documents in the whole collection.
+     * @param globalDf The collection-wide doc_freq of every term, or null to use the local doc_freq.
+     */
+    public void finalizeIndex(int n, Map<String, Integer> globalDf) {
+        lock.writeLock().lock();
+        try {
+            statsN = n;
+            statsDf = globalDf;
+            computeStatistics(n, globalDf);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Computes the norms of all documents. The squared norm of a document is
+     * the sum over its terms of (a * (L - l))^2, with a = 1 + log10(dtf),
+     * L = log10(n) and l = log10(df). It is kept as three sums per document,
+     * S0 = sum a^2, S1 = sum a^2 * l and S2 = sum a^2 * l^2, so that
+     * norm^2 = L^2 * S0 - 2L * S1 + S2: a new n changes only L, and a term
+     * whose postings changed is subtracted and added again on its own
+     * (updateStatistics). The caller holds the write lock.
      */
-    String[] sort(String[] words) {  //bubble sort
-        boolean sorted = false;
-        String sTmp;
-        //-------------------------------------------------------
-        while (!sorted) {
-            sorted = true;
-            for (int i = 0; i < words.length - 1; i++) {
-                int compare = words[i].compareTo(words[i + 1]);
-                if (compare > 0) {
-                    sTmp = words[i];
-                    words[i] = words[i + 1];
-                    words[i + 1] = sTmp;
-                    sorted = false;
+    void computeStatistics(int n, Map<String, Integer> globalDf) {
+        if (sources.isEmpty()) {
+            docBase = 0;
+            docNorms = new float[0];
+            bm25Norms = new float[0];
+            avgLength = 0;
+            normSums = new double[0];
+            normsLastDoc = -1;
+            changedTerms = new HashSet<String>();
+            return;
+        }
+        int base = sources.first();
+        int size = sources.last() - base + 1;
+
+        double[] sums = index.entrySet().parallelStream().collect(() -> new double[3 * size], (acc, e) -> {
+            DictEntry entry = e.getValue();
+            double l = log10(globalDf == null ? entry.doc_freq : globalDf.getOrDefault(e.getKey(), entry.doc_freq));
+            forEachPosting(entry, (docId, dtf) -> addNormTerm(acc, 3 * (docId - base), dtf, l, 1));
+            entry.statsLogDf = l;
+        }, (a, b) -> {
+            for (int i = 0; i < a.length; i++) {
+                a[i] += b[i];
+            }
+        });
+        setNorms(n, base, sums);
+        buildBitmaps();
+        buildPacked();
+    }
+
+    /**
+     * Adds the share of one posting to the norm sums of its document, or
+     * removes it with sign -1.
+     */
+    static void addNormTerm(double[] sums, int at, int dtf, double l, int sign) {
+        double a2 = sign * tfWeight2(dtf);
+        sums[at] += a2;
+        sums[at + 1] += a2 * l;
+        sums[at + 2] += a2 * l * l;
+    }
+
+    static final double[] TF_WEIGHT2 = new double[256]; // (1 + log10(dtf))^2 of small dtf
+    static {
+        for (int tf = 1; tf < TF_WEIGHT2.length; tf++) {
+            double a = 1 + log10(tf);
+            TF_WEIGHT2[tf] = a * a;
+        }
+    }
+
+    static double tfWeight2(int dtf) {
+        if (dtf < TF_WEIGHT2.length) {
+            return TF_WEIGHT2[dtf];
+        }
+        double a = 1 + log10(dtf);
+        return a * a;
+    }
+
+    /**
+     * Derives the norms and BM25 norms of every document from the norm sums.
+     */
+    void setNorms(int n, int base, double[] sums) {
+        int size = sources.last() - base + 1;
+        long totalLength = 0;
+        for (int id = sources.first(); id >= 0; id = sources.next(id)) {
+            totalLength += sources.length(id);
+        }
+        double avg = (double) totalLength / sources.size();
+        double L = log10(n);
+        float[] norms = new float[size];
+        float[] bm25 = new float[size];
+        for (int id = sources.first(); id >= 0; id = sources.next(id)) {
+            int d = id - base;
+            double sq = L * L * sums[3 * d] - 2 * L * sums[3 * d + 1] + sums[3 * d + 2];
+            norms[d] = (float) sqrt(Math.max(0, sq));
+            bm25[d] = (float) (K1 * ((1 - B) + B * (avg > 0 ? sources.length(id) / avg : 0)));
+            sources.setNorm(id, norms[d]);
+        }
+        docBase = base;
+        avgLength = avg;
+        docNorms = norms;
+        bm25Norms = bm25;
+        normSums = sums;
+        normsLastDoc = sources.last();
+        changedTerms = new HashSet<String>();
+    }
+
+    /**
+     * Records a term whose postings changed for updateStatistics. A
+     * document indexed under a docId the norm sums already counted cannot
+     * be told apart from the counted one, it forces a full computation.
+     * @param fid The document indexed, -1 for a removal.
+     */
+    void termChanged(String term, int fid) {
+        if (changedTerms != null) {
+            if (fid >= 0 && fid <= normsLastDoc) {
+                changedTerms = null;
+            } else {
+                changedTerms.add(term);
+            }
+        }
+    }
+
+    /**
+     * Brings the statistics up to date after documents were added or
+     * removed. Only the terms whose postings changed are counted again: the
+     * norm sums of the documents in their posting lists, their bitmaps and
+     * packed lists. The norms and BM25 norms are then derived again from the
+     * sums, which is linear in the number of documents. After a load, a
+     * reorder or an update forcing it, everything is computed again. The
+     * statistics use the collection statistics of the last finalizeIndex.
+     * The caller holds the write lock.
+     */
+    void updateStatistics() {
+        if (finalized()) {
+            return;
+        }
+        if (normSums == null || changedTerms == null || sources.isEmpty()) {
+            recomputeStatistics();
+            return;
+        }
+        int n = statsDf == null ? (N > 0 ? N : sources.size()) : statsN;
+        int base = docBase;
+        int size = sources.last() - base + 1;
+        double[] sums = normSums.length >= 3 * size ? normSums : Arrays.copyOf(normSums, Math.max(3 * size, 2 * normSums.length));
+        // removed documents no longer count, the sums of their terms go too
+        for (int id = base; id <= normsLastDoc; id++) {
+            if (!sources.contains(id)) {
+                Arrays.fill(sums, 3 * (id - base), 3 * (id - base) + 3, 0);
+            }
+        }
+        double min = bitmapThreshold * sources.size();
+        boolean bitmaps = bitmapThreshold <= 1;
+        for (String term : changedTerms) {
+            DictEntry entry = index.get(term);
+            if (entry == null) {
+                continue; // its documents are all gone
+            }
+            double old = entry.statsLogDf;
+            double l = log10(statsDf == null ? entry.doc_freq : statsDf.getOrDefault(term, entry.doc_freq));
+            // documents counted before only see l change, S0 stays
+            int counted = Double.isNaN(old) ? -1 : normsLastDoc;
+            double d1 = l - old;
+            double d2 = l * l - old * old;
+            forEachPosting(entry, (docId, dtf) -> {
+                int at = 3 * (docId - base);
+                if (docId > counted) {
+                    addNormTerm(sums, at, dtf, l, 1);
+                } else if (d1 != 0) {
+                    double a2 = tfWeight2(dtf);
+                    sums[at + 1] += a2 * d1;
+                    sums[at + 2] += a2 * d2;
                 }
+            });
+            entry.statsLogDf = l;
+            buildBitmap(entry, min, bitmaps);
+            buildPacked(entry);
+        }
+        setNorms(n, base, sums);
+    }
+
+    //----------------------------------------------------------------------------
+    /**
+     * Sets the fraction of documents a term must occur in before
+     * finalizeIndex gives it a bitmap in addition to its stored postings.
+     * @param fraction The doc_freq / number of documents threshold; above 1 disables bitmaps.
+     */
+    public void setBitmapThreshold(double fraction) {
+        lock.writeLock().lock();
+        try {
+            bitmapThreshold = fraction;
+            if (docNorms != null) {
+                buildBitmaps();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gives every term above the bitmap threshold a bitmap of its postings
+     * and drops the bitmaps of the other terms. Bitmaps are built only for
+     * terms that have none, that is terms that crossed the threshold or
+     * whose postings changed since the last call. The caller holds the
+     * write lock.
+     */
+    void buildBitmaps() {
+        double min = bitmapThreshold * sources.size();
+        boolean enabled = bitmapThreshold <= 1 && !sources.isEmpty();
+        for (DictEntry entry : index.values()) {
+            buildBitmap(entry, min, enabled);
+        }
+    }
+
+    static void buildBitmap(DictEntry entry, double min, boolean enabled) {
+        if (enabled && entry.doc_freq >= min && entry.doc_freq > 1) {
+            if (entry.bitmap == null) {
+                BitmapPostings bits = new BitmapPostings();
+                forEachPosting(entry, (docId, dtf) -> bits.add(docId));
+                entry.bitmap = bits;
+            }
+        } else {
+            entry.bitmap = null;
+        }
+    }
+
+    /**
+     * Enables or disables storing long posting lists block-packed. Disabling
+     * decodes every packed term back into a linked list.
+     * @param enable True to pack the lists of terms with at least one full block.
+     */
+    public void setPackedPostings(boolean enable) {
+        lock.writeLock().lock();
+        try {
+            packPostings = enable;
+            if (docNorms != null || !enable) {
+                buildPacked();
             }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the postings of every term with at least one full block as
+     * PackedPostings instead of a linked list, packing only the terms that
+     * were unpacked since the last call, and unpacks the other terms. The
+     * caller holds the write lock.
+     */
+    void buildPacked() {
+        for (DictEntry entry : index.values()) {
+            buildPacked(entry);
         }
+    }
+
+    void buildPacked(DictEntry entry) {
+        if (packPostings && entry.doc_freq >= PackedPostings.BLOCK) {
+            if (entry.packed == null) {
+                entry.pack();
+            }
+        } else {
+            entry.unpack();
+        }
+    }
+
+    /**
+     * Computes the statistics dropped by an update, under the write lock,
+     * with the collection statistics of the last finalizeIndex. Only the
+     * terms the update changed are counted again, see updateStatistics.
+     */
+    void ensureFinalized() {
+        if (finalized()) {
+            return;
+        }
+        if (lock.getReadHoldCount() > 0) {
+            throw new IllegalStateException("the read lock cannot be upgraded to finalize the index");
+        }
+        lock.writeLock().lock();
+        try {
+            updateStatistics();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Computes the statistics with the collection statistics of the last
+     * finalizeIndex, which a shard got from the whole collection. The caller
+     * holds the write lock.
+     */
+    void recomputeStatistics() {
+        computeStatistics(statsDf == null ? (N > 0 ? N : sources.size()) : statsN, statsDf);
+    }
+
+    /**
+     * @return True if the statistics are computed.
+     */
+    boolean finalized() {
+        return docNorms != null;
+    }
+
+    /**
+     * Takes the read lock on a finalized index. The read lock cannot be
+     * upgraded, so the statistics are computed first and checked again once
+     * the read lock is held.
+     */
+    void readLockFinalized() {
+        while (true) {
+            ensureFinalized();
+            lock.readLock().lock();
+            if (finalized()) {
+                return;
+            }
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the statistics computed by finalizeIndex and the spelling index
+     * after the index changed. Bitmaps and packed lists were already dropped
+     * for the terms whose postings changed, the others stay valid.
+     */
+    void invalidateStatistics() {
+        updates++;
+        docNorms = null;
+        bm25Norms = null;
+        spelling = null;
+    }
+
+    //----------------------------------------------------------------------------
+    /**
+     * Enables spelling correction of query terms that are not in the
+     * dictionary. Short words are close to too many terms: words under
+     * fuzzyMinLength letters are never corrected and words under 8 letters
+     * at most within 1 edit.
+     * @param maxEdits The largest edit distance searched, 1 or 2; 0 disables correction.
+     */
+    public void setFuzzy(int maxEdits) {
+        if (maxEdits != fuzzyEdits) {
+            spelling = null;
+        }
+        fuzzyEdits = Math.max(0, Math.min(2, maxEdits));
+    }
+
+    synchronized SpellingIndex spellingIndex() {
+        if (spelling == null) {
+            spelling = new SpellingIndex(index, Math.max(1, fuzzyEdits));
+        }
+        return spelling;
+    }
+
+    /**
+     * Returns the dictionary terms close to a word, closest and most
+     * frequent first.
+     * @param word The processed query word.
+     * @return The suggestions within the fuzzy edit distance.
+     */
+    public List<SpellingIndex.Suggestion> suggest(String word) {
+        return spellingIndex().suggest(word, Math.max(1, fuzzyEdits));
+    }
+
+    /**
+     * @return The edit distance allowed when correcting a word of this length.
+     */
+    int allowedEdits(int length) {
+        if (length < fuzzyMinLength) {
+            return 0;
+        }
+        return length < 8 ? Math.min(1, fuzzyEdits) : fuzzyEdits;
+    }
+
+    /**
+     * Replaces every query term that is not in the dictionary by its best
+     * suggestion, when fuzzy matching is enabled and the term is long enough.
+     * @param terms The processed query terms.
+     * @param explain Receives the corrections made; may be null.
+     * @return The corrected terms, the same list if nothing was changed.
+     */
+    List<String> correct(List<String> terms, QueryExplain explain) {
+        if (fuzzyEdits == 0) {
+            return terms;
+        }
+        List<String> corrected = null;
+        for (int i = 0; i < terms.size(); i++) {
+            String term = terms.get(i);
+            int edits = allowedEdits(term.length());
+            if (edits == 0 || index.containsKey(term)) {
+                continue;
+            }
+            List<SpellingIndex.Suggestion> sg = spellingIndex().suggest(term, edits);
+            if (sg.isEmpty()) {
+                continue;
+            }
+            if (corrected == null) {
+                corrected = new ArrayList<String>(terms);
+            }
+            corrected.set(i, sg.get(0).term);
+            if (explain != null) {
+                explain.corrections.add(term + " -> " + sg.get(0).term + " " + sg.subList(0, Math.min(5, sg.size())));
+            }
+        }
+        if (corrected == null) {
+            return terms;
+        }
+        List<String> unique = new ArrayList<String>();
+        for (String t : corrected) {
+            if (!unique.contains(t)) {
+                unique.add(t);
+            }
+        }
+        return unique;
+    }
+
+    //---------------------------------
+    /**
+     * Sorts an array of words in place, in O(n log n).
+     * @param words The array of words to sort.
+     * @return The sorted array of words.
+     */
+    String[] sort(String[] words) {
+        Arrays.sort(words);
         return words;
     }
 
     //---------------------------------
 
     /**
-     * Stores the index and source records to a file.
+     * Stores the index and source records to a file. The data is written to
+     * a temporary file, synced to disk and renamed over the old file, so a
+     * crash leaves either the old or the new index, never a partial one.
+     * Updates wait while the index is written.
      * @param storageName The name of the file to store the data.
      */
     public void store(String storageName) {
         try {
             String pathToStorage = "D:\\is322_HW_1\\collections\\"+storageName;
-            Writer wr = new FileWriter(pathToStorage);
-            for (Map.Entry<Integer, SourceRecord> entry : sources.entrySet()) {
-                System.out.println("Key = " + entry.getKey() + ", Value = " + entry.getValue().URL + ", Value = " + entry.getValue().title + ", Value = " + entry.getValue().text);
-                wr.write(entry.getKey().toString() + ",");
-                wr.write(entry.getValue().URL.toString() + ",");
-                wr.write(entry.getValue().title.replace(',', '~') + ",");
-                wr.write(entry.getValue().length + ","); //String formattedDouble = String.format("%.2f", fee );
-                wr.write(String.format("%4.4f", entry.getValue().norm) + ",");
-                wr.write(entry.getValue().text.toString().replace(',', '~') + "\n");
-            }
-            wr.write("section2" + "\n");
-
-            Iterator it = index.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry pair = (Map.Entry) it.next();
-                DictEntry dd = (DictEntry) pair.getValue();
-                //  System.out.print("** [" + pair.getKey() + "," + dd.doc_freq + "] <" + dd.term_freq + "> =--> ");
-                wr.write(pair.getKey().toString() + "," + dd.doc_freq + "," + dd.term_freq + ";");
-                Posting p = dd.pList;
-                while (p != null) {
-                    //    System.out.print( p.docId + "," + p.dtf + ":");
-                    wr.write(p.docId + "," + p.dtf + ":");
-                    p = p.next;
+            lock.readLock().lock();
+            try (FileOutputStream fos = new FileOutputStream(pathToStorage + ".tmp");
+                    Writer wr = new BufferedWriter(new OutputStreamWriter(fos))) {
+                for (int d = sources.first(); d >= 0; d = sources.next(d)) {
+                    System.out.println("Key = " + d + ", Value = " + sources.url(d) + ", Value = " + sources.title(d) + ", Value = notext");
+                    wr.write(d + ",");
+                    wr.write(sources.url(d) + ",");
+                    wr.write(sources.title(d).replace(',', '~') + ",");
+                    wr.write(sources.length(d) + ","); //String formattedDouble = String.format("%.2f", fee );
+                    wr.write(String.format("%4.4f", sources.norm(d)) + ",");
+                    wr.write("notext" + "\n");
                 }
-                wr.write("\n");
+                wr.write("section2" + "\n");
+
+                Iterator it = index.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry pair = (Map.Entry) it.next();
+                    DictEntry dd = (DictEntry) pair.getValue();
+                    //  System.out.print("** [" + pair.getKey() + "," + dd.doc_freq + "] <" + dd.term_freq + "> =--> ");
+                    wr.write(pair.getKey().toString() + "," + dd.doc_freq + "," + dd.term_freq + ";");
+                    Posting p = dd.postings();
+                    while (p != null) {
+                        //    System.out.print( p.docId + "," + p.dtf + ":");
+                        wr.write(p.docId + "," + p.dtf + ":");
+                        p = p.next;
+                    }
+                    wr.write("\n");
+                }
+                wr.write("end" + "\n");
+                wr.flush();
+                fos.getChannel().force(true);
+            } finally {
+                lock.readLock().unlock();
             }
-            wr.write("end" + "\n");
-            wr.close();
+            IndexCommitter.move(Paths.get(pathToStorage + ".tmp"), Paths.get(pathToStorage));
             System.out.println("=============EBD STORE=============");
 
         } catch (Exception e) {
@@ -359,8 +1787,8 @@ public class Index5 {
     public HashMap<String, DictEntry> load(String storageName) {
         try {
             String pathToStorage = "/home/ehab/tmp11/rl/"+storageName;
-            sources = new HashMap<Integer, SourceRecord>();
-            index = new HashMap<String, DictEntry>();
+            DocTable sources = new DocTable(this.sources.offHeap);
+            HashMap<String, DictEntry> index = new HashMap<String, DictEntry>();
             BufferedReader file = new BufferedReader(new FileReader(pathToStorage));
             String ln = "";
             int flen = 0;
@@ -373,9 +1801,8 @@ public class Index5 {
                 try {
                     System.out.println("**>>" + fid + " " + ss[1] + " " + ss[2].replace('~', ',') + " " + ss[3] + " [" + ss[4] + "]   " + ss[5].replace('~', ','));
 
-                    SourceRecord sr = new SourceRecord(fid, ss[1], ss[2].replace('~', ','), Integer.parseInt(ss[3]), Double.parseDouble(ss[4]), ss[5].replace('~', ','));
                     //   System.out.println("**>>"+fid+" "+ ss[1]+" "+ ss[2]+" "+ ss[3]+" ["+ Double.parseDouble(ss[4])+ "]  \n"+ ss[5]);
-                    sources.put(fid, sr);
+                    sources.add(fid, ss[1], ss[2].replace('~', ','), Integer.parseInt(ss[3]), Float.parseFloat(ss[4]));
                 } catch (Exception e) {
                     System.out.println(fid + "  ERROR  " + e.getMessage());
                     e.printStackTrace();
@@ -402,6 +1829,8 @@ public class Index5 {
                     }
                 }
             }
+            file.close();
+            replace(sources, index); // swapped under the write lock, then finalized
             System.out.println("============= END LOAD =============");
             //    printDictionary();
         } catch (Exception e) {
@@ -409,4 +1838,4 @@ public class Index5 {
         }
         return index;
     }
-}
\ No newline at end of file
+}
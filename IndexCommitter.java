@@ -0,0 +1,214 @@
+package invertedIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe commits of an index into a directory. Every commit writes a new
+ * generation of the data file in the {@link BinaryIndex} format (one CRC32
+ * per block) under a temporary name, fsyncs it, renames it, and then
+ * publishes it by atomically renaming a small checksummed manifest over
+ * "commit.manifest". A crash at any point leaves either the old or the new
+ * manifest, each naming a complete data file.
+ *
+ * Opening reads the manifest and checks the data file length only; block
+ * checksums are verified while the blocks are decoded, not by a separate
+ * scan. If the current generation turns out to be damaged, the previous
+ * generation, which is kept until the next commit, is opened instead.
+ */
+public class IndexCommitter {
+
+    static final String MANIFEST = "commit.manifest";
+
+    Path directory;
+    public int threads = Runtime.getRuntime().availableProcessors();
+    public long generation = 0;   // generation of the last commit written or opened
+
+    public IndexCommitter(String dir) throws IOException {
+        directory = Paths.get(dir);
+        Files.createDirectories(directory);
+    }
+
+    static String dataName(long gen) {
+        return "index_" + gen + ".bin";
+    }
+
+    //---------------------------------------------
+    /**
+     * Writes the index as a new generation and publishes it. The index is
+     * serialized under its read lock, so updates wait until it is written.
+     * @param ix The index to commit.
+     */
+    public synchronized void commit(Index5 ix) throws IOException {
+        Map<String, String> current = readManifest(directory.resolve(MANIFEST));
+        long gen = Math.max(generation, current == null ? 0 : Long.parseLong(current.get("generation"))) + 1;
+
+        // 1. data file: temporary name, fsync, rename
+        Path data = directory.resolve(dataName(gen));
+        Path tmp = directory.resolve(dataName(gen) + ".tmp");
+        int documents;
+        int terms;
+        ix.lock.readLock().lock();
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+            OutputStream os = new BufferedOutputStream(fos, 1 << 16);
+            BinaryIndex.write(ix, os);
+            documents = ix.sources.size();
+            terms = ix.index.size();
+            os.flush();
+            fos.getChannel().force(true);
+        } finally {
+            ix.lock.readLock().unlock();
+        }
+        move(tmp, data);
+
+        // 2. manifest: temporary name, fsync, atomic rename over the old one
+        Map<String, String> m = new LinkedHashMap<String, String>();
+        m.put("generation", Long.toString(gen));
+        m.put("data", data.getFileName().toString());
+        m.put("length", Long.toString(Files.size(data)));
+        m.put("documents", Integer.toString(documents));
+        m.put("terms", Integer.toString(terms));
+        if (current != null) {
+            m.put("previousGeneration", current.get("generation"));
+            m.put("previous", current.get("data"));
+            m.put("previousLength", current.get("length"));
+        }
+        writeManifest(m);
+
+        // 3. generations older than the previous one are no longer needed
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory, "index_*.bin*")) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                if (!name.equals(m.get("data")) && !name.equals(m.get("previous"))) {
+                    Files.deleteIfExists(p);
+                }
+            }
+        }
+        generation = gen;
+    }
+
+    /**
+     * Opens the last committed generation, or the previous one if the last
+     * is damaged.
+     * @param ix The index to fill, its content is replaced.
+     * @return True if an index was opened, false if nothing was ever committed.
+     */
+    public synchronized boolean open(Index5 ix) throws IOException {
+        Map<String, String> m = readManifest(directory.resolve(MANIFEST));
+        if (m == null) {
+            if (Files.exists(directory.resolve(MANIFEST))) {
+                throw new IOException("Commit manifest in " + directory + " is corrupt");
+            }
+            return false;
+        }
+        try {
+            openData(ix, m.get("data"), m.get("length"));
+            generation = Long.parseLong(m.get("generation"));
+            return true;
+        } catch (IOException e) {
+            if (m.get("previous") == null) {
+                throw e;
+            }
+            System.out.println("Commit " + m.get("data") + " is damaged (" + e.getMessage()
+                    + "), opening " + m.get("previous"));
+            openData(ix, m.get("previous"), m.get("previousLength"));
+            generation = Long.parseLong(m.get("previousGeneration"));
+            // make the good generation current again
+            Map<String, String> back = new LinkedHashMap<String, String>();
+            back.put("generation", Long.toString(generation));
+            back.put("data", m.get("previous"));
+            back.put("length", m.get("previousLength"));
+            writeManifest(back);
+            return true;
+        }
+    }
+
+    void openData(Index5 ix, String name, String length) throws IOException {
+        Path data = directory.resolve(name);
+        if (!Files.exists(data) || Files.size(data) != Long.parseLong(length)) {
+            throw new IOException(name + " is missing or has the wrong length");
+        }
+        BinaryIndex.load(ix, data.toString(), threads);
+    }
+
+    //---------------------------------------------
+    void writeManifest(Map<String, String> m) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : m.entrySet()) {
+            sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+        }
+        byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        String text = sb.append("crc=").append(Long.toHexString(crc.getValue())).append('\n').toString();
+
+        Path tmp = directory.resolve(MANIFEST + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile())) {
+            fos.write(text.getBytes(StandardCharsets.UTF_8));
+            fos.getChannel().force(true);
+        }
+        move(tmp, directory.resolve(MANIFEST));
+    }
+
+    /**
+     * Reads a manifest and checks its checksum.
+     * @return The manifest entries, or null if the file is missing or corrupt.
+     */
+    static Map<String, String> readManifest(Path p) throws IOException {
+        if (!Files.exists(p)) {
+            return null;
+        }
+        String text = new String(Files.readAllBytes(p), StandardCharsets.UTF_8);
+        int c = text.lastIndexOf("crc=");
+        if (c < 0) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(text.substring(0, c).getBytes(StandardCharsets.UTF_8));
+        if (!Long.toHexString(crc.getValue()).equals(text.substring(c + 4).trim())) {
+            return null;
+        }
+        Map<String, String> m = new LinkedHashMap<String, String>();
+        for (String ln : text.substring(0, c).split("\n")) {
+            int eq = ln.indexOf('=');
+            if (eq > 0) {
+                m.put(ln.substring(0, eq), ln.substring(eq + 1));
+            }
+        }
+        return m.containsKey("data") && m.containsKey("generation") && m.containsKey("length") ? m : null;
+    }
+
+    /**
+     * Renames a file atomically and makes the rename durable.
+     */
+    static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(to.toAbsolutePath().getParent());
+    }
+
+    static void syncDirectory(Path dir) {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // some platforms cannot open or sync a directory; the rename is still atomic
+        }
+    }
+}
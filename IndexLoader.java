@@ -0,0 +1,301 @@
+package invertedIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads an index saved by {@link Index5#store(String)} in the text format
+ * (source records, "section2", one line per term, "end"). The file is
+ * mapped into memory in windows of about WINDOW bytes that end on line
+ * boundaries, so files over 2 GB load too. The term section is cut into
+ * byte ranges that end on line boundaries and every range is parsed by its
+ * own thread straight from the bytes, with a number parser that does not
+ * allocate. The dictionary is filled concurrently.
+ */
+public class IndexLoader {
+
+    static final byte[] SECTION2 = "section2\n".getBytes(StandardCharsets.US_ASCII);
+    static final long WINDOW = 1L << 30;
+
+    MappedByteBuffer buf;
+    int limit;
+
+    IndexLoader(MappedByteBuffer b) {
+        buf = b;
+        limit = b.limit();
+    }
+
+    //---------------------------------------------
+    /**
+     * Loads a text index into an Index5, replacing its content under the
+     * write lock of the index, so it may be queried meanwhile. The document
+     * store of the old content is closed.
+     * @param ix The index to fill.
+     * @param path The index file.
+     * @param threads The number of parser threads.
+     */
+    public static void load(Index5 ix, String path, int threads) throws IOException {
+        List<IndexLoader> windows = new ArrayList<IndexLoader>();
+        try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = ch.size();
+            for (long start = 0; start < size;) {
+                long end = start + WINDOW >= size ? size : lineEnd(ch, start + WINDOW);
+                if (end - start > Integer.MAX_VALUE) {
+                    throw new IOException(path + " has a line longer than 1 GB at offset " + start);
+                }
+                windows.add(new IndexLoader(ch.map(FileChannel.MapMode.READ_ONLY, start, end - start)));
+                start = end;
+            }
+        }
+        DocTable sources = new DocTable(ix.sources.offHeap);
+        int w = 0;
+        int section2 = -1;
+        for (; w < windows.size() && section2 < 0; w++) {
+            IndexLoader loader = windows.get(w);
+            section2 = loader.find(SECTION2);
+            loader.parseSources(0, section2 < 0 ? loader.limit : section2, sources);
+        }
+        if (section2 < 0) {
+            throw new IOException(path + " has no section2");
+        }
+        // the term section runs from after section2 to the "end" line
+        List<IndexLoader> parts = new ArrayList<IndexLoader>();
+        List<int[]> bounds = new ArrayList<int[]>();
+        int from = section2 + SECTION2.length;
+        for (w--; w < windows.size(); w++) {
+            IndexLoader loader = windows.get(w);
+            int to = loader.find(from);
+            parts.add(loader);
+            bounds.add(new int[]{from, to});
+            if (to < loader.limit) {
+                break;
+            }
+            from = 0;
+        }
+        ix.replace(sources, parseTerms(parts, bounds, threads));
+    }
+
+    /**
+     * @return The offset after the first line break at or after pos, or the
+     *         size of the file.
+     */
+    static long lineEnd(FileChannel ch, long pos) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1 << 16);
+        while (true) {
+            b.clear();
+            int n = ch.read(b, pos);
+            if (n < 0) {
+                return ch.size();
+            }
+            for (int i = 0; i < n; i++) {
+                if (b.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+    }
+
+    /**
+     * Finds a line equal to the given bytes.
+     * @return The offset of the line, or -1.
+     */
+    int find(byte[] line) {
+        int pos = 0;
+        while (pos < limit) {
+            if (matches(pos, line)) {
+                return pos;
+            }
+            pos = nextLine(pos);
+        }
+        return -1;
+    }
+
+    boolean matches(int pos, byte[] line) {
+        if (pos + line.length > limit) {
+            return false;
+        }
+        for (int i = 0; i < line.length; i++) {
+            if (buf.get(pos + i) != line[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int nextLine(int pos) {
+        while (pos < limit && buf.get(pos) != '\n') {
+            pos++;
+        }
+        return pos + 1;
+    }
+
+    //---------------------------------------------
+    /**
+     * Parses the source records: fid,URL,title,length,norm,text where the
+     * title and text have their commas replaced by '~'.
+     * @param sources Receives the records.
+     */
+    void parseSources(int from, int to, DocTable sources) {
+        byte[] line = new byte[256];
+        int pos = from;
+        while (pos < to) {
+            int end = nextLine(pos) - 1;
+            int len = end - pos;
+            if (len > line.length) {
+                line = new byte[len * 2];
+            }
+            buf.get(pos, line, 0, len);
+            String ln = new String(line, 0, len, StandardCharsets.UTF_8);
+            if (ln.endsWith("\r")) {
+                ln = ln.substring(0, ln.length() - 1);
+            }
+            pos = end + 1;
+            if (ln.isEmpty()) {
+                continue;
+            }
+            // the URL may contain commas, so cut the fixed fields from both ends
+            int c1 = ln.indexOf(',');
+            int c5 = ln.lastIndexOf(',');
+            int c4 = ln.lastIndexOf(',', c5 - 1);
+            int c3 = ln.lastIndexOf(',', c4 - 1);
+            int c2 = ln.lastIndexOf(',', c3 - 1);
+            int fid = Integer.parseInt(ln.substring(0, c1));
+            sources.add(fid, ln.substring(c1 + 1, c2), ln.substring(c2 + 1, c3).replace('~', ','),
+                    Integer.parseInt(ln.substring(c3 + 1, c4)), Float.parseFloat(ln.substring(c4 + 1, c5).trim()));
+        }
+    }
+
+    //---------------------------------------------
+    /**
+     * Parses the term section in parallel byte ranges.
+     * @param windows The windows holding the term section, in file order.
+     * @param bounds The part of the term section in every window.
+     */
+    static HashMap<String, DictEntry> parseTerms(List<IndexLoader> windows, List<int[]> bounds, int threads) throws IOException {
+        int n = Math.max(1, threads);
+        long bytes = 0;
+        for (int[] b : bounds) {
+            bytes += b[1] - b[0];
+        }
+        ConcurrentHashMap<String, DictEntry> dict = new ConcurrentHashMap<String, DictEntry>(
+                (int) Math.min(1 << 28, Math.max(16, bytes / 32)));
+        ExecutorService pool = Executors.newFixedThreadPool(n);
+        try {
+            List<Future<?>> parts = new ArrayList<Future<?>>();
+            for (int w = 0; w < windows.size(); w++) {
+                IndexLoader loader = windows.get(w);
+                int from = bounds.get(w)[0];
+                int to = bounds.get(w)[1];
+                int start = from;
+                for (int i = 1; i <= n && start < to; i++) {
+                    int end = i == n ? to : Math.min(to, loader.nextLine(from + (int) ((long) (to - from) * i / n) - 1));
+                    if (end > start) {
+                        int s = start;
+                        parts.add(pool.submit(() -> loader.parseRange(s, end, dict)));
+                        start = end;
+                    }
+                }
+            }
+            for (Future<?> f : parts) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Corrupt term section: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return new HashMap<String, DictEntry>(dict);
+    }
+
+    /**
+     * @return The offset of the "end" line after from, or the end of the file.
+     */
+    int find(int from) {
+        int pos = from;
+        while (pos < limit) {
+            if (pos + 3 <= limit && buf.get(pos) == 'e' && buf.get(pos + 1) == 'n' && buf.get(pos + 2) == 'd'
+                    && (pos + 3 == limit || buf.get(pos + 3) == '\n' || buf.get(pos + 3) == '\r')) {
+                return pos;
+            }
+            pos = nextLine(pos);
+        }
+        return limit;
+    }
+
+    /**
+     * Parses the lines term,df,tf;docId,dtf:docId,dtf:... of one range.
+     */
+    void parseRange(int from, int to, ConcurrentHashMap<String, DictEntry> dict) {
+        byte[] term = new byte[64];
+        int[] pos = new int[1];
+        pos[0] = from;
+        while (pos[0] < to) {
+            int p = pos[0];
+            int t = 0;
+            byte c;
+            while ((c = buf.get(p)) != ',') {
+                if (t == term.length) {
+                    term = Arrays.copyOf(term, t * 2);
+                }
+                term[t++] = c;
+                p++;
+            }
+            pos[0] = p + 1;
+            DictEntry entry = new DictEntry(parseInt(pos), 0);
+            pos[0]++; // ','
+            entry.term_freq = parseInt(pos);
+            pos[0]++; // ';'
+            while (pos[0] < to && (c = buf.get(pos[0])) != '\n' && c != '\r') {
+                int docId = parseInt(pos);
+                pos[0]++; // ','
+                Posting posting = new Posting(docId, parseInt(pos));
+                pos[0]++; // ':'
+                if (entry.pList == null) {
+                    entry.pList = posting;
+                } else {
+                    entry.last.next = posting;
+                }
+                entry.last = posting;
+            }
+            pos[0] = nextLine(pos[0]);
+            dict.put(new String(term, 0, t, StandardCharsets.UTF_8), entry);
+        }
+    }
+
+    /**
+     * Parses a decimal integer at pos[0] and leaves pos[0] on the byte after it.
+     */
+    int parseInt(int[] pos) {
+        int p = pos[0];
+        boolean negative = buf.get(p) == '-';
+        if (negative) {
+            p++;
+        }
+        int v = 0;
+        byte c;
+        while (p < limit && (c = buf.get(p)) >= '0' && c <= '9') {
+            v = v * 10 + (c - '0');
+            p++;
+        }
+        pos[0] = p;
+        return negative ? -v : v;
+    }
+}
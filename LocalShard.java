@@ -0,0 +1,72 @@
+package invertedIndex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A shard held in this process.
+ */
+public class LocalShard implements Shard {
+
+    public Index5 index;
+
+    public LocalShard(Index5 ix) {
+        index = ix;
+    }
+
+    @Override
+    public int numDocs() {
+        return index.sources.size();
+    }
+
+    @Override
+    public int[] docFreqs(List<String> terms) {
+        index.lock.readLock().lock();
+        try {
+            return index.docFreqs(terms);
+        } finally {
+            index.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Integer> and(List<String> terms) {
+        List<Integer> ids = new ArrayList<Integer>();
+        Posting p = index.and(terms);
+        while (p != null) {
+            ids.add(p.docId);
+            p = p.next;
+        }
+        return ids;
+    }
+
+    @Override
+    public List<ScoredDoc> topK(List<String> terms, int[] df, int n, int k) {
+        return index.rankedSearch(terms, df, n, k);
+    }
+
+    @Override
+    public Map<String, Integer> vocabulary() {
+        Map<String, Integer> v = new HashMap<String, Integer>();
+        for (Map.Entry<String, DictEntry> e : index.index.entrySet()) {
+            v.put(e.getKey(), e.getValue().doc_freq);
+        }
+        return v;
+    }
+
+    @Override
+    public void finalizeIndex(int n, Map<String, Integer> df) {
+        index.finalizeIndex(n, df);
+    }
+
+    @Override
+    public SourceRecord source(int docId) {
+        return index.sources.record(docId);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,157 @@
+package invertedIndex;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the decode throughput of packed posting blocks with the scalar
+ * decoder and with the decoder selected by PackedPostings (the vector
+ * decoder when it is compiled and jdk.incubator.vector is available), and
+ * checks that both decode every block to the same values. The best rate is
+ * compared with the target of several billion docIds per second, which is
+ * not reached: on a commodity x86 machine the vector decoder measured 1.0 to
+ * 1.6 G/s and the scalar one 0.35 to 0.5 G/s.
+ *
+ * Usage: java --add-modules jdk.incubator.vector invertedIndex.PackedBenchmark [postings] [averageGap]
+ */
+public class PackedBenchmark {
+
+    static final double TARGET = 3000; // M docIds/s, "several billion integers per second"
+
+    public static void main(String args[]) {
+        int postings = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 22;
+        int gap = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        Random rnd = new Random(7);
+        Posting head = null;
+        Posting last = null;
+        int docId = 0;
+        for (int i = 0; i < postings; i++) {
+            docId += 1 + rnd.nextInt(2 * gap - 1);
+            Posting p = new Posting(docId, 1 + (rnd.nextInt(8) == 0 ? rnd.nextInt(20) : 0));
+            if (head == null) {
+                head = p;
+            } else {
+                last.next = p;
+            }
+            last = p;
+        }
+        PackedPostings packed = new PackedPostings(head);
+        System.out.printf("%d postings in %d blocks, %.2f bits per posting (docId and dtf)%n", postings,
+                packed.blocks(), packed.sizeInBytes() * 8.0 / postings);
+        System.out.println("Selected decoder: " + PackedPostings.DECODER.name());
+
+        if (!same(packed, new ScalarBlockDecoder(), PackedPostings.DECODER)) {
+            System.out.println("Vector and scalar decoders disagree");
+            return;
+        }
+        int check = 0;
+        for (Posting p = head; p != null; p = p.next) {
+            check += p.docId;
+        }
+        print("linked list walk", walk(head, check));
+        check = 0; // decoding is checked through the last docId of every block
+        for (int k = 0; k < packed.blocks(); k++) {
+            check += packed.lastDocId[k];
+        }
+        double scalar = decodeScalar(packed, new ScalarBlockDecoder(), check);
+        print("scalar decode", scalar);
+        double selected = decodeSelected(packed, check);
+        print(PackedPostings.DECODER.name() + " decode", selected);
+        double best = Math.max(scalar, selected);
+        System.out.printf("Target %.1f G docIds/s: best %.2f G docIds/s, %s%n", TARGET / 1000, best / 1000,
+                best >= TARGET ? "reached" : String.format("not reached (%.0f%% of target)", 100 * best / TARGET));
+    }
+
+    static void print(String name, double mps) {
+        System.out.printf("%-24s: %8.1f M docIds/s (%.2f G/s)%n", name, mps, mps / 1000);
+    }
+
+    static boolean same(PackedPostings packed, BlockDecoder a, BlockDecoder b) {
+        int[] x = new int[PackedPostings.BLOCK];
+        int[] y = new int[PackedPostings.BLOCK];
+        for (int k = 0; k < packed.blocks(); k++) {
+            int base = k == 0 ? 0 : packed.lastDocId[k - 1];
+            a.decode(packed.words, packed.docOffset[k], packed.docBits[k], base, x);
+            b.decode(packed.words, packed.docOffset[k], packed.docBits[k], base, y);
+            if (!Arrays.equals(x, y)) {
+                return false;
+            }
+            a.unpack(packed.words, packed.tfOffset[k], packed.tfBits[k], x);
+            b.unpack(packed.words, packed.tfOffset[k], packed.tfBits[k], y);
+            if (!Arrays.equals(x, y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static double walk(Posting head, int check) {
+        int rounds = 20;
+        long n = 0;
+        long t0 = 0;
+        for (int r = -10; r < rounds; r++) { // ten rounds of warm up
+            if (r == 0) {
+                t0 = System.nanoTime();
+            }
+            int sum = 0;
+            for (Posting p = head; p != null; p = p.next) {
+                sum += p.docId;
+                n += r >= 0 ? 1 : 0;
+            }
+            if (sum != check) {
+                throw new IllegalStateException("linked list walk checksum");
+            }
+        }
+        return n / ((System.nanoTime() - t0) / 1e3);
+    }
+
+    // the decoders are timed in separate loops, each call site sees one
+    // decoder class and the Vector API code is inlined as in PackedPostings
+
+    static double decodeScalar(PackedPostings packed, ScalarBlockDecoder decoder, int check) {
+        int[] buf = new int[PackedPostings.BLOCK];
+        int rounds = 20;
+        long n = 0;
+        long t0 = 0;
+        for (int r = -10; r < rounds; r++) { // ten rounds of warm up
+            if (r == 0) {
+                t0 = System.nanoTime();
+            }
+            int sum = 0;
+            for (int k = 0; k < packed.blocks(); k++) {
+                decoder.decode(packed.words, packed.docOffset[k], packed.docBits[k],
+                        k == 0 ? 0 : packed.lastDocId[k - 1], buf);
+                int len = packed.blockLength(k);
+                sum += buf[len - 1];
+                n += r >= 0 ? len : 0;
+            }
+            if (sum != check) {
+                throw new IllegalStateException("scalar decode checksum");
+            }
+        }
+        return n / ((System.nanoTime() - t0) / 1e3);
+    }
+
+    static double decodeSelected(PackedPostings packed, int check) {
+        int[] buf = new int[PackedPostings.BLOCK];
+        int rounds = 20;
+        long n = 0;
+        long t0 = 0;
+        for (int r = -10; r < rounds; r++) {
+            if (r == 0) {
+                t0 = System.nanoTime();
+            }
+            int sum = 0;
+            for (int k = 0; k < packed.blocks(); k++) {
+                int len = packed.decodeDocs(k, buf);
+                sum += buf[len - 1];
+                n += r >= 0 ? len : 0;
+            }
+            if (sum != check) {
+                throw new IllegalStateException(PackedPostings.DECODER.name() + " checksum");
+            }
+        }
+        return n / ((System.nanoTime() - t0) / 1e3);
+    }
+}
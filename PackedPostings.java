@@ -0,0 +1,277 @@
+package invertedIndex;
+
+import java.util.Arrays;
+
+/**
+ * Posting list stored as blocks of 128 postings. The docIds of a block are
+ * kept as deltas from the docId four positions earlier, bit-packed with the
+ * width of the largest delta; the dtf values are bit-packed the same way
+ * without deltas. The last docId of every block is kept unpacked, so a
+ * lookup skips whole blocks and only decodes the block that may hold the
+ * docId. The last block is padded to 128 values with zero deltas.
+ *
+ * Index5 stores the postings of terms with at least one full block in this
+ * form instead of a linked list (see DictEntry). AND probes the running
+ * result against it, the ranked and BM25 scoring loops and the lazy search
+ * cursors decode its docIds and dtf values block by block. An update of the
+ * term decodes it back into a linked list until the statistics are
+ * computed again.
+ */
+public class PackedPostings {
+
+    static final int BLOCK = 128;
+    static final BlockDecoder DECODER = selectDecoder();
+
+    int count;          // number of postings
+    int[] lastDocId;    // per block, the largest docId
+    int[] docOffset;    // per block, the first word of the docId deltas
+    byte[] docBits;
+    int[] tfOffset;     // per block, the first word of the dtf values
+    byte[] tfBits;
+    int[] words;
+
+    /**
+     * Uses the Vector API decoder when jdk.incubator.vector can be loaded,
+     * otherwise the scalar one.
+     */
+    static BlockDecoder selectDecoder() {
+        try {
+            Class<?> c = Class.forName("invertedIndex.VectorBlockDecoder");
+            return (BlockDecoder) c.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return new ScalarBlockDecoder();
+        }
+    }
+
+    /**
+     * Packs a posting list.
+     * @param p The head of a posting list in increasing docId order.
+     */
+    public PackedPostings(Posting p) {
+        count = Index5.postingLength(p);
+        int blocks = (count + BLOCK - 1) / BLOCK;
+        lastDocId = new int[blocks];
+        docOffset = new int[blocks];
+        docBits = new byte[blocks];
+        tfOffset = new int[blocks];
+        tfBits = new byte[blocks];
+        words = new int[Math.max(16, count / 2)];
+        int used = 0;
+        int[] docs = new int[BLOCK + 4];
+        int[] deltas = new int[BLOCK];
+        int[] tfs = new int[BLOCK];
+        int prev = 0;
+        for (int b = 0; b < blocks; b++) {
+            int n = 0;
+            docs[0] = docs[1] = docs[2] = docs[3] = prev;
+            while (p != null && n < BLOCK) {
+                docs[n + 4] = p.docId;
+                tfs[n] = p.dtf;
+                n++;
+                p = p.next;
+            }
+            for (int i = n; i < BLOCK; i++) {
+                docs[i + 4] = docs[i]; // zero delta padding
+                tfs[i] = 0;
+            }
+            int dBits = 0;
+            int tBits = 0;
+            for (int i = 0; i < BLOCK; i++) {
+                deltas[i] = docs[i + 4] - docs[i];
+                dBits = Math.max(dBits, 32 - Integer.numberOfLeadingZeros(deltas[i]));
+                tBits = Math.max(tBits, 32 - Integer.numberOfLeadingZeros(tfs[i]));
+            }
+            prev = docs[n + 3];
+            lastDocId[b] = prev;
+            if (used + 4 * (dBits + tBits) > words.length) {
+                words = Arrays.copyOf(words, Math.max(words.length * 2, used + 4 * (dBits + tBits)));
+            }
+            docOffset[b] = used;
+            docBits[b] = (byte) dBits;
+            pack(deltas, dBits, words, used);
+            used += 4 * dBits;
+            tfOffset[b] = used;
+            tfBits[b] = (byte) tBits;
+            pack(tfs, tBits, words, used);
+            used += 4 * tBits;
+        }
+        words = Arrays.copyOf(words, used);
+    }
+
+    /**
+     * Packs 128 values in the lane layout described in {@link BlockDecoder}.
+     */
+    static void pack(int[] values, int bits, int[] words, int offset) {
+        for (int i = 0; i < BLOCK; i++) {
+            int bit = (i >>> 2) * bits;
+            int w = offset + (bit >>> 5) * 4 + (i & 3);
+            int s = bit & 31;
+            words[w] |= values[i] << s;
+            if (s + bits > 32) {
+                words[w + 4] |= values[i] >>> (32 - s);
+            }
+        }
+    }
+
+    //---------------------------------------------
+    /**
+     * @return The number of blocks.
+     */
+    public int blocks() {
+        return lastDocId.length;
+    }
+
+    /**
+     * @return The number of postings in a block.
+     */
+    public int blockLength(int b) {
+        return b < lastDocId.length - 1 ? BLOCK : count - b * BLOCK;
+    }
+
+    /**
+     * Decodes the docIds of a block.
+     * @param b The block.
+     * @param out Receives the docIds, at least 128 entries.
+     * @return The number of postings in the block.
+     */
+    public int decodeDocs(int b, int[] out) {
+        DECODER.decode(words, docOffset[b], docBits[b], b == 0 ? 0 : lastDocId[b - 1], out);
+        return blockLength(b);
+    }
+
+    /**
+     * Decodes the dtf values of a block, for the scoring loops.
+     * @param b The block.
+     * @param out Receives the dtf values, at least 128 entries.
+     * @return The number of postings in the block.
+     */
+    public int decodeTfs(int b, int[] out) {
+        DECODER.unpack(words, tfOffset[b], tfBits[b], out);
+        return blockLength(b);
+    }
+
+    /**
+     * @return The block that may hold a docId, blocks() if it is above the last docId.
+     */
+    int findBlock(int docId) {
+        int lo = 0;
+        int hi = lastDocId.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lastDocId[mid] < docId) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Looks one document up, decoding only the block that may hold it.
+     * @param docId The document ID.
+     * @return Its dtf, 0 if the document is not in the list.
+     */
+    public int dtf(int docId) {
+        int b = findBlock(docId);
+        if (b == lastDocId.length) {
+            return 0;
+        }
+        int[] buf = new int[BLOCK];
+        int n = decodeDocs(b, buf);
+        int i = Arrays.binarySearch(buf, 0, n, docId);
+        if (i < 0) {
+            return 0;
+        }
+        decodeTfs(b, buf);
+        return buf[i];
+    }
+
+    /**
+     * Decodes the whole list.
+     * @return A new linked posting list.
+     */
+    public Posting toPostings() {
+        Posting head = null;
+        Posting last = null;
+        int[] docs = new int[BLOCK];
+        int[] tfs = new int[BLOCK];
+        for (int b = 0; b < lastDocId.length; b++) {
+            int n = decodeDocs(b, docs);
+            decodeTfs(b, tfs);
+            for (int i = 0; i < n; i++) {
+                Posting p = new Posting(docs[i], tfs[i]);
+                if (head == null) {
+                    head = p;
+                } else {
+                    last.next = p;
+                }
+                last = p;
+            }
+        }
+        return head;
+    }
+
+    //---------------------------------------------
+    /**
+     * Keeps the postings of a shorter list whose docId is in this list.
+     * Blocks whose last docId is below the next probe are skipped without
+     * being decoded.
+     * @param p The head of a posting list.
+     * @param step Receives the postings visited and skipped, may be null.
+     * @return A new posting list of the docIds in both.
+     */
+    public Posting filter(Posting p, QueryExplain.Step step) {
+        Posting answer = null;
+        Posting last = null;
+        int[] buf = new int[BLOCK];
+        int b = 0;
+        int decoded = -1;
+        int i = 0;
+        long scanned = 0;
+        long skipped = 0;
+        while (p != null) {
+            while (b < lastDocId.length && lastDocId[b] < p.docId) {
+                b++;
+            }
+            if (b == lastDocId.length) {
+                break;
+            }
+            if (decoded != b) {
+                decodeDocs(b, buf);
+                decoded = b;
+                i = 0;
+            }
+            while (buf[i] < p.docId) { // stops at the latest at lastDocId[b]
+                i++;
+                scanned++;
+                skipped++;
+            }
+            scanned++;
+            if (buf[i] == p.docId) {
+                Posting n = new Posting(p.docId);
+                if (answer == null) {
+                    answer = n;
+                } else {
+                    last.next = n;
+                }
+                last = n;
+            } else {
+                skipped++;
+            }
+            p = p.next;
+        }
+        if (step != null) {
+            step.scanned += scanned;
+            step.skipped += skipped;
+        }
+        return answer;
+    }
+
+    /**
+     * @return The size of the packed postings, in bytes.
+     */
+    public long sizeInBytes() {
+        return 4L * words.length + 10L * lastDocId.length;
+    }
+}
@@ -0,0 +1,131 @@
+package invertedIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects what happened while a query was evaluated: the terms left after
+ * stop-word and stem processing, their dictionary statistics, the order in
+ * which posting lists were intersected, the work done by each intersection
+ * step and the time spent in every phase.
+ *
+ * Pass an instance to {@link Index5#find_24_01(String, QueryExplain)} and
+ * print it afterwards.
+ */
+public class QueryExplain {
+
+    /**
+     * Dictionary statistics of one query term.
+     */
+    public static class TermStat {
+        public String term;
+        public boolean found;
+        public int doc_freq;
+        public int term_freq;
+        public int postingLength;
+
+        TermStat(String t) {
+            term = t;
+        }
+    }
+
+    /**
+     * Work done by one intersection of two posting lists.
+     */
+    public static class Step {
+        public String with;       // term intersected with the running result
+        public String method;     // merge, probe (sparse list against a bitmap), bitmap (word-level AND) or packed (sparse list against packed blocks)
+        public int leftLength;    // length of the running result before the step
+        public int rightLength;   // posting length of the term
+        public long scanned = 0;  // postings visited on both sides
+        public long skipped = 0;  // postings visited that did not produce a match
+        public int produced = 0;  // length of the running result after the step
+        public long nanos = 0;
+
+        Step(String w) {
+            with = w;
+        }
+    }
+
+    public String query;
+    public List<String> rawWords = new ArrayList<String>();
+    public List<String> terms = new ArrayList<String>();
+    public List<String> corrections = new ArrayList<String>();
+    public List<TermStat> termStats = new ArrayList<TermStat>();
+    public List<String> order = new ArrayList<String>();
+    public List<Step> steps = new ArrayList<Step>();
+    public int results = 0;
+
+    public long parseNanos = 0;
+    public long lookupNanos = 0;
+    public long intersectNanos = 0;
+    public long renderNanos = 0;
+
+    //---------------------------------------------
+    /**
+     * Finds the statistics recorded for a term.
+     * @param term The processed query term.
+     * @return The recorded statistics, or null if the term was never looked up.
+     */
+    public TermStat stat(String term) {
+        for (TermStat ts : termStats) {
+            if (ts.term.equals(term)) {
+                return ts;
+            }
+        }
+        return null;
+    }
+
+    //---------------------------------------------
+    /**
+     * @return The total time spent evaluating the query, in nanoseconds.
+     */
+    public long totalNanos() {
+        return parseNanos + lookupNanos + intersectNanos + renderNanos;
+    }
+
+    static String ms(long nanos) {
+        return String.format("%.3f ms", nanos / 1e6);
+    }
+
+    //---------------------------------------------
+    /**
+     * Formats the collected information as a readable report.
+     * @return The report.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("EXPLAIN \"").append(query).append("\"\n");
+        sb.append("  words : ").append(rawWords).append("\n");
+        sb.append("  terms : ").append(terms).append("   (after stop words and stemming)\n");
+        for (String c : corrections) {
+            sb.append("    corrected ").append(c).append("\n");
+        }
+        for (TermStat ts : termStats) {
+            if (ts.found) {
+                sb.append("    ").append(ts.term).append(" doc_freq=").append(ts.doc_freq)
+                        .append(" term_freq=").append(ts.term_freq)
+                        .append(" postings=").append(ts.postingLength).append("\n");
+            } else {
+                sb.append("    ").append(ts.term).append(" NOT IN DICTIONARY\n");
+            }
+        }
+        sb.append("  order : ").append(order).append("\n");
+        int s = 1;
+        for (Step st : steps) {
+            sb.append("    step ").append(s++).append(": (").append(st.leftLength).append(") AND ")
+                    .append(st.with).append(" (").append(st.rightLength).append(") -> ").append(st.produced)
+                    .append("  ").append(st.method)
+                    .append("  scanned=").append(st.scanned).append(" skipped=").append(st.skipped)
+                    .append("  ").append(ms(st.nanos)).append("\n");
+        }
+        sb.append("  results   : ").append(results).append("\n");
+        sb.append("  parse     : ").append(ms(parseNanos)).append("\n");
+        sb.append("  lookup    : ").append(ms(lookupNanos)).append("\n");
+        sb.append("  intersect : ").append(ms(intersectNanos)).append("\n");
+        sb.append("  render    : ").append(ms(renderNanos)).append("\n");
+        sb.append("  total     : ").append(ms(totalNanos())).append("\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,135 @@
+package invertedIndex;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client side of a {@link ShardServer} running on this machine. Requests on
+ * one connection are answered in order, so calls are serialized.
+ */
+public class RemoteShard implements Shard {
+
+    Socket socket;
+    BufferedReader in;
+    Writer out;
+
+    public RemoteShard(int port) throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    synchronized String call(String request) throws IOException {
+        out.write(request);
+        out.write("\n");
+        out.flush();
+        String ln = in.readLine();
+        if (ln == null) {
+            throw new IOException("Shard closed the connection");
+        }
+        if (ln.startsWith("ERROR")) {
+            throw new IOException(ln);
+        }
+        return ln;
+    }
+
+    static String[] fields(String ln) {
+        return ln.isEmpty() ? new String[0] : ln.split("\t");
+    }
+
+    @Override
+    public int numDocs() throws IOException {
+        return Integer.parseInt(call("N"));
+    }
+
+    @Override
+    public int[] docFreqs(List<String> terms) throws IOException {
+        if (terms.isEmpty()) {
+            return new int[0];
+        }
+        String[] ss = fields(call("DF\t" + String.join("\t", terms)));
+        int[] df = new int[ss.length];
+        for (int i = 0; i < ss.length; i++) {
+            df[i] = Integer.parseInt(ss[i]);
+        }
+        return df;
+    }
+
+    @Override
+    public List<Integer> and(List<String> terms) throws IOException {
+        List<Integer> ids = new ArrayList<Integer>();
+        if (terms.isEmpty()) {
+            return ids;
+        }
+        for (String s : fields(call("AND\t" + String.join("\t", terms)))) {
+            ids.add(Integer.parseInt(s));
+        }
+        return ids;
+    }
+
+    @Override
+    public List<ScoredDoc> topK(List<String> terms, int[] df, int n, int k) throws IOException {
+        StringBuilder req = new StringBuilder("TOPK\t").append(k).append('\t').append(n);
+        for (int i = 0; i < terms.size(); i++) {
+            req.append('\t').append(terms.get(i)).append('=').append(df[i]);
+        }
+        List<ScoredDoc> result = new ArrayList<ScoredDoc>();
+        for (String s : fields(call(req.toString()))) {
+            int c = s.indexOf(':');
+            result.add(new ScoredDoc(Integer.parseInt(s.substring(0, c)), Double.parseDouble(s.substring(c + 1))));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Integer> vocabulary() throws IOException {
+        Map<String, Integer> v = new HashMap<String, Integer>();
+        for (String s : fields(call("VOCAB"))) {
+            int eq = s.lastIndexOf('=');
+            v.put(s.substring(0, eq), Integer.parseInt(s.substring(eq + 1)));
+        }
+        return v;
+    }
+
+    @Override
+    public void finalizeIndex(int n, Map<String, Integer> df) throws IOException {
+        StringBuilder req = new StringBuilder("STATS\t").append(n);
+        for (Map.Entry<String, Integer> e : df.entrySet()) {
+            req.append('\t').append(e.getKey()).append('=').append(e.getValue());
+        }
+        call(req.toString());
+    }
+
+    @Override
+    public SourceRecord source(int docId) throws IOException {
+        String[] ss = fields(call("DOC\t" + docId));
+        if (ss.length < 3) {
+            return null;
+        }
+        SourceRecord sr = new SourceRecord(docId, ss[0], ss[1], "notext");
+        sr.length = Integer.parseInt(ss[2]);
+        return sr;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.write("QUIT\n");
+            out.flush();
+        } finally {
+            socket.close();
+        }
+    }
+}
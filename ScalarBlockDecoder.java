@@ -0,0 +1,47 @@
+package invertedIndex;
+
+import java.util.Arrays;
+
+/**
+ * Decodes packed blocks one value at a time. Used when the Vector API is
+ * not available, and as the reference for {@link VectorBlockDecoder}.
+ */
+public class ScalarBlockDecoder implements BlockDecoder {
+
+    @Override
+    public void unpack(int[] words, int offset, int bits, int[] out) {
+        if (bits == 0) {
+            Arrays.fill(out, 0, PackedPostings.BLOCK, 0);
+            return;
+        }
+        int mask = bits == 32 ? -1 : (1 << bits) - 1;
+        for (int j = 0; j < PackedPostings.BLOCK / 4; j++) {
+            int bit = j * bits;
+            int w = offset + (bit >>> 5) * 4;
+            int s = bit & 31;
+            for (int l = 0; l < 4; l++) {
+                int v = words[w + l] >>> s;
+                if (s + bits > 32) {
+                    v |= words[w + 4 + l] << (32 - s);
+                }
+                out[4 * j + l] = v & mask;
+            }
+        }
+    }
+
+    @Override
+    public void decode(int[] words, int offset, int bits, int base, int[] out) {
+        unpack(words, offset, bits, out);
+        for (int i = 0; i < 4; i++) {
+            out[i] += base;
+        }
+        for (int i = 4; i < PackedPostings.BLOCK; i++) {
+            out[i] += out[i - 4];
+        }
+    }
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,89 @@
+package invertedIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A document ID with the score it got for a query.
+ */
+public class ScoredDoc {
+
+    /**
+     * Best first: higher score, then lower document ID.
+     */
+    public static final Comparator<ScoredDoc> BEST_FIRST = (a, b) -> {
+        int c = Double.compare(b.score, a.score);
+        return c != 0 ? c : Integer.compare(a.docId, b.docId);
+    };
+
+    public int docId;
+    public double score;
+
+    public ScoredDoc(int id, double s) {
+        docId = id;
+        score = s;
+    }
+
+    //---------------------------------------------
+    /**
+     * Selects the k best documents from an array of accumulated scores.
+     * Only documents that beat the current k-th best get a ScoredDoc.
+     * @param scores The score of every document, indexed by docId - base.
+     * @param hit True for the documents that were scored.
+     * @param base The docId of the first slot.
+     * @param k The number of documents to keep.
+     * @return The k best documents, highest score first.
+     */
+    public static List<ScoredDoc> topK(double[] scores, boolean[] hit, int base, int k) {
+        PriorityQueue<ScoredDoc> heap = new PriorityQueue<ScoredDoc>(Math.max(1, k), BEST_FIRST.reversed());
+        for (int d = 0; d < scores.length && k > 0; d++) {
+            // docIds increase, so an equal score loses against the heap
+            if (hit[d] && (heap.size() < k || scores[d] > heap.peek().score)) {
+                offer(heap, new ScoredDoc(base + d, scores[d]), k);
+            }
+        }
+        return drain(heap);
+    }
+
+    /**
+     * Merges several best-first lists into one list of the k best documents.
+     * @param lists The lists to merge, for example one per shard.
+     * @param k The number of documents to keep.
+     * @return The k best documents, highest score first.
+     */
+    public static List<ScoredDoc> merge(List<List<ScoredDoc>> lists, int k) {
+        PriorityQueue<ScoredDoc> heap = new PriorityQueue<ScoredDoc>(Math.max(1, k), BEST_FIRST.reversed());
+        for (List<ScoredDoc> list : lists) {
+            for (ScoredDoc sd : list) {
+                offer(heap, sd, k);
+            }
+        }
+        return drain(heap);
+    }
+
+    static void offer(PriorityQueue<ScoredDoc> heap, ScoredDoc sd, int k) {
+        if (k <= 0) {
+            return;
+        }
+        if (heap.size() < k) {
+            heap.add(sd);
+        } else if (BEST_FIRST.compare(sd, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(sd);
+        }
+    }
+
+    static List<ScoredDoc> drain(PriorityQueue<ScoredDoc> heap) {
+        List<ScoredDoc> result = new ArrayList<ScoredDoc>(heap);
+        Collections.sort(result, BEST_FIRST);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return docId + ":" + score;
+    }
+}
@@ -0,0 +1,297 @@
+package invertedIndex;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The answer to a query as a lazy sequence of (docId, score). Boolean
+ * results are produced by walking the posting lists only as far as the
+ * caller reads, and document metadata is looked up only for the hits of the
+ * page that is returned.
+ *
+ * Boolean results need no lock from the caller: every step of the iterator
+ * takes the read lock of the index for itself. When the index was updated
+ * since the previous step, the posting lists are looked up again and the
+ * walk continues after the last docId returned. Results therefore stay in
+ * increasing docId order and no document is returned twice, while a
+ * document added or removed during the iteration is seen or not depending
+ * on whether the walk already passed its docId.
+ */
+public class SearchResults implements Iterable<ScoredDoc> {
+
+    /**
+     * One result of a page, with the metadata needed to display it.
+     */
+    public static class Hit {
+        public int docId;
+        public double score;
+        public String url;
+        public String title;
+        public int length;
+        public String snippet;   // null when no document store is open
+
+        Hit(ScoredDoc sd, DocTable sources, String sn) {
+            docId = sd.docId;
+            score = sd.score;
+            url = sources.url(docId);
+            title = sources.title(docId);
+            length = sources.length(docId);
+            snippet = sn;
+        }
+
+        @Override
+        public String toString() {
+            String s = "\t" + docId + " - " + title + " - " + length + "\n";
+            return snippet == null ? s : s + "\t\t" + snippet + "\n";
+        }
+    }
+
+    Index5 index;
+    List<String> terms;      // Boolean AND over the postings of these terms
+    List<ScoredDoc> ranked;  // already scored results
+
+    /**
+     * Results of a Boolean AND query.
+     * @param ix The index holding the documents.
+     * @param t The processed query terms.
+     */
+    SearchResults(Index5 ix, List<String> t) {
+        index = ix;
+        terms = t;
+    }
+
+    /**
+     * Results of a ranked query.
+     * @param ix The index holding the documents.
+     * @param t The processed query terms.
+     * @param r The scored documents, best first.
+     */
+    SearchResults(Index5 ix, List<String> t, List<ScoredDoc> r) {
+        index = ix;
+        terms = t;
+        ranked = r;
+    }
+
+    //---------------------------------------------
+    @Override
+    public Iterator<ScoredDoc> iterator() {
+        if (ranked != null) {
+            return ranked.iterator();
+        }
+        return new AndIterator(index, terms);
+    }
+
+    /**
+     * @return The results as a sequential stream.
+     */
+    public Stream<ScoredDoc> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Returns one page of results with their metadata, holding the read
+     * lock for the whole page so that it is read from one state of the index.
+     * @param offset The number of results to skip.
+     * @param limit The maximum number of results on the page.
+     * @return The hits of the page, in result order.
+     */
+    public List<Hit> page(int offset, int limit) {
+        index.lock.readLock().lock();
+        try {
+            List<Hit> hits = new ArrayList<Hit>();
+            Iterator<ScoredDoc> it = iterator();
+            for (int i = 0; i < offset && it.hasNext(); i++) {
+                it.next();
+            }
+            while (hits.size() < limit && it.hasNext()) {
+                ScoredDoc sd = it.next();
+                hits.add(new Hit(sd, index.sources, index.snippet(sd.docId, terms)));
+            }
+            return hits;
+        } finally {
+            index.lock.readLock().unlock();
+        }
+    }
+
+    //---------------------------------------------
+    /**
+     * Position in the posting list of one term.
+     */
+    static class Cursor {
+        static final int END = Integer.MAX_VALUE;
+
+        Posting p;
+        int doc;
+
+        Cursor(Posting head) {
+            p = head;
+            doc = p == null ? END : p.docId;
+        }
+
+        /**
+         * @return A cursor on the stored postings of a term, linked or packed.
+         */
+        static Cursor of(DictEntry entry) {
+            return entry.packed != null ? new PackedCursor(entry.packed) : new Cursor(entry.pList);
+        }
+
+        /**
+         * Moves to the first posting with a docId of at least target.
+         */
+        void advanceTo(int target) {
+            while (p != null && p.docId < target) {
+                p = p.next;
+            }
+            doc = p == null ? END : p.docId;
+        }
+    }
+
+    /**
+     * Position in a packed posting list. Blocks below the target are
+     * skipped by their last docId, only the block holding the position is
+     * decoded.
+     */
+    static class PackedCursor extends Cursor {
+        PackedPostings packed;
+        int[] buf = new int[PackedPostings.BLOCK];
+        int block = -1;  // the decoded block
+        int length;      // postings in it
+        int i;
+
+        PackedCursor(PackedPostings pp) {
+            super(null);
+            packed = pp;
+            doc = -1;
+            advanceTo(0);
+        }
+
+        @Override
+        void advanceTo(int target) {
+            if (doc >= target) {
+                return;
+            }
+            if (block < 0 || packed.lastDocId[block] < target) {
+                int b = packed.findBlock(target);
+                if (b == packed.blocks()) {
+                    doc = END;
+                    return;
+                }
+                length = packed.decodeDocs(b, buf);
+                block = b;
+                i = 0;
+            }
+            while (i < length && buf[i] < target) { // stops at the latest at lastDocId[block]
+                i++;
+            }
+            doc = buf[i];
+        }
+    }
+
+    /**
+     * Intersects posting lists one match at a time. The list of the rarest
+     * term drives, the others are advanced to its current docId. Every step
+     * holds the read lock; after an update the lists are looked up again
+     * and the cursors are placed after the last docId returned.
+     */
+    static class AndIterator implements Iterator<ScoredDoc> {
+
+        Index5 index;
+        List<String> terms;
+        int updates;
+        Cursor[] cursors = null;
+        int lastDocId = -1;
+        boolean done;
+        ScoredDoc next = null;
+
+        AndIterator(Index5 ix, List<String> t) {
+            index = ix;
+            terms = t;
+            done = t.isEmpty();
+            advance();
+        }
+
+        /**
+         * Looks the terms up, rarest first, and places the cursors at or
+         * after a docId. The caller holds the read lock.
+         */
+        void resolve(int from) {
+            updates = index.updates;
+            List<DictEntry> entries = new ArrayList<DictEntry>();
+            for (String term : terms) {
+                DictEntry entry = index.index.get(term);
+                if (entry == null) {
+                    done = true;
+                    cursors = null;
+                    return;
+                }
+                entries.add(entry);
+            }
+            entries.sort((a, b) -> Integer.compare(a.doc_freq, b.doc_freq));
+            cursors = new Cursor[entries.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = Cursor.of(entries.get(i));
+                cursors[i].advanceTo(from);
+            }
+        }
+
+        void advance() {
+            next = null;
+            if (done) {
+                return;
+            }
+            index.lock.readLock().lock();
+            try {
+                if (cursors == null || index.updates != updates) {
+                    resolve(lastDocId + 1);
+                    if (done) {
+                        return;
+                    }
+                }
+                Cursor[] c = cursors;
+                int candidate = c[0].doc;
+                search:
+                while (candidate != Cursor.END) {
+                    for (int i = 1; i < c.length; i++) {
+                        c[i].advanceTo(candidate);
+                        if (c[i].doc > candidate) {
+                            // move the driver up to the larger docId and try again
+                            c[0].advanceTo(c[i].doc);
+                            candidate = c[0].doc;
+                            continue search;
+                        }
+                    }
+                    next = new ScoredDoc(candidate, 1.0);
+                    lastDocId = candidate;
+                    c[0].advanceTo(candidate + 1);
+                    return;
+                }
+                done = true;
+                cursors = null;
+            } finally {
+                index.lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public ScoredDoc next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            ScoredDoc sd = next;
+            advance();
+            return sd;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package invertedIndex;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One docId-range partition of the collection, with its own dictionary and
+ * postings. A shard is either an Index5 in this process ({@link LocalShard})
+ * or a {@link ShardServer} reached over loopback ({@link RemoteShard}).
+ */
+public interface Shard {
+
+    /**
+     * @return The number of documents held by this shard.
+     */
+    int numDocs() throws IOException;
+
+    /**
+     * Returns the local doc_freq of processed terms.
+     * @param terms The processed query terms.
+     * @return One doc_freq per term, 0 for missing terms.
+     */
+    int[] docFreqs(List<String> terms) throws IOException;
+
+    /**
+     * Evaluates a Boolean AND query on this shard.
+     * @param terms The processed query terms.
+     * @return The matching document IDs in increasing order.
+     */
+    List<Integer> and(List<String> terms) throws IOException;
+
+    /**
+     * Ranks the documents of this shard with collection-wide statistics.
+     * @param terms The processed query terms.
+     * @param df The collection-wide doc_freq of every term.
+     * @param n The number of documents in the whole collection.
+     * @param k The number of documents to return.
+     * @return The k best documents of this shard, highest score first.
+     */
+    List<ScoredDoc> topK(List<String> terms, int[] df, int n, int k) throws IOException;
+
+    /**
+     * @return Every term of this shard with its local doc_freq.
+     */
+    Map<String, Integer> vocabulary() throws IOException;
+
+    /**
+     * Recomputes the document norms of this shard with collection-wide statistics.
+     * @param n The number of documents in the whole collection.
+     * @param df The collection-wide doc_freq of every term.
+     */
+    void finalizeIndex(int n, Map<String, Integer> df) throws IOException;
+
+    /**
+     * Returns the metadata of a document owned by this shard.
+     * @param docId The document ID.
+     * @return The source record, or null if the shard does not own the document.
+     */
+    SourceRecord source(int docId) throws IOException;
+
+    /**
+     * Releases the resources held by this shard.
+     */
+    void close() throws IOException;
+}
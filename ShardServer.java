@@ -0,0 +1,180 @@
+package invertedIndex;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves one shard over a loopback socket so that shards can run as separate
+ * processes behind a {@link ShardedIndex} coordinator.
+ *
+ * The protocol is line based, fields are separated by tabs:
+ * <pre>
+ *   N                          -> numDocs
+ *   DF   t1 t2 ...             -> df1 df2 ...
+ *   AND  t1 t2 ...             -> id1 id2 ...
+ *   TOPK k n t1=df1 t2=df2 ... -> id1:score1 id2:score2 ...
+ *   DOC  id                    -> url title length     (empty line if not owned)
+ *   VOCAB                      -> t1=df1 t2=df2 ...
+ *   STATS n t1=df1 t2=df2 ...  -> OK                   (recomputes norms)
+ *   QUIT
+ * </pre>
+ */
+public class ShardServer {
+
+    Index5 index;
+    ServerSocket server;
+
+    public ShardServer(Index5 ix, int port) throws IOException {
+        index = ix;
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    //---------------------------------------------
+    /**
+     * Accepts connections until the server socket is closed, each connection
+     * is served by its own thread.
+     */
+    public void serve() {
+        while (!server.isClosed()) {
+            try {
+                Socket s = server.accept();
+                Thread t = new Thread(() -> handle(s), "shard-" + getPort());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        server.close();
+    }
+
+    void handle(Socket s) {
+        try (Socket sock = s;
+                BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new BufferedWriter(new OutputStreamWriter(sock.getOutputStream(), StandardCharsets.UTF_8))) {
+            String ln;
+            while ((ln = in.readLine()) != null) {
+                if (ln.equals("QUIT")) {
+                    break;
+                }
+                out.write(answer(ln.split("\t")));
+                out.write("\n");
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Shard connection closed: " + e.getMessage());
+        }
+    }
+
+    String answer(String[] req) {
+        StringBuilder sb = new StringBuilder();
+        List<String> terms = new ArrayList<String>();
+        switch (req[0]) {
+            case "N":
+                return Integer.toString(index.sources.size());
+            case "DF":
+                for (int i = 1; i < req.length; i++) {
+                    sb.append(i > 1 ? "\t" : "").append(index.docFreq(req[i]));
+                }
+                return sb.toString();
+            case "AND":
+                terms.addAll(Arrays.asList(req).subList(1, req.length));
+                for (Posting p = index.and(terms); p != null; p = p.next) {
+                    sb.append(sb.length() > 0 ? "\t" : "").append(p.docId);
+                }
+                return sb.toString();
+            case "TOPK":
+                int k = Integer.parseInt(req[1]);
+                int n = Integer.parseInt(req[2]);
+                int[] df = new int[req.length - 3];
+                for (int i = 3; i < req.length; i++) {
+                    int eq = req[i].lastIndexOf('=');
+                    terms.add(req[i].substring(0, eq));
+                    df[i - 3] = Integer.parseInt(req[i].substring(eq + 1));
+                }
+                for (ScoredDoc sd : index.rankedSearch(terms, df, n, k)) {
+                    sb.append(sb.length() > 0 ? "\t" : "").append(sd.docId).append(':').append(sd.score);
+                }
+                return sb.toString();
+            case "DOC":
+                SourceRecord sr = index.sources.record(Integer.parseInt(req[1]));
+                if (sr == null) {
+                    return "";
+                }
+                return sr.URL.replace('\t', ' ') + "\t" + sr.title.replace('\t', ' ') + "\t" + sr.length;
+            case "VOCAB":
+                for (Map.Entry<String, DictEntry> e : index.index.entrySet()) {
+                    sb.append(sb.length() > 0 ? "\t" : "").append(e.getKey()).append('=').append(e.getValue().doc_freq);
+                }
+                return sb.toString();
+            case "STATS":
+                Map<String, Integer> global = new HashMap<String, Integer>();
+                for (int i = 2; i < req.length; i++) {
+                    int eq = req[i].lastIndexOf('=');
+                    global.put(req[i].substring(0, eq), Integer.parseInt(req[i].substring(eq + 1)));
+                }
+                index.finalizeIndex(Integer.parseInt(req[1]), global);
+                return "OK";
+            default:
+                return "ERROR unknown request " + req[0];
+        }
+    }
+
+    //---------------------------------------------
+    /**
+     * Starts a shard process.
+     * Usage: ShardServer port firstDocId fileList
+     * where fileList names a text file holding one document path per line.
+     * Prints "READY port" once the shard is indexed and listening.
+     */
+    public static void main(String args[]) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: ShardServer port firstDocId fileList");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        int firstDocId = Integer.parseInt(args[1]);
+        List<String> files = new ArrayList<String>();
+        try (BufferedReader list = new BufferedReader(new FileReader(args[2]))) {
+            String ln;
+            while ((ln = list.readLine()) != null) {
+                if (!ln.isEmpty()) {
+                    files.add(ln);
+                }
+            }
+        }
+        Index5 index = new Index5();
+        index.buildIndex(files.toArray(new String[0]), firstDocId);
+        index.finalizeIndex(); // the coordinator sends collection-wide statistics with STATS
+        ShardServer server = new ShardServer(index, port);
+        System.out.println("READY " + server.getPort());
+        System.out.flush();
+        server.serve();
+    }
+}
@@ -0,0 +1,330 @@
+package invertedIndex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Coordinator over a collection split into docId-range shards. Every query
+ * is sent to all shards in parallel and the answers are gathered here:
+ * Boolean results are concatenated in shard order, ranked results are merged
+ * into a global top-k. Ranking is done in two rounds so that every shard
+ * scores with the collection-wide doc_freq and document count.
+ */
+public class ShardedIndex {
+
+    /**
+     * A request sent to one shard.
+     */
+    interface ShardCall<T> {
+        T call(Shard s) throws IOException;
+    }
+
+    public List<Shard> shards;
+    int[] firstDocIds;          // first document ID owned by every shard
+    ExecutorService pool;
+    List<Process> processes = new ArrayList<Process>();
+    Index5 analyzer = new Index5(); // only used for its query processing rules
+
+    /**
+     * @param s The shards, in increasing docId-range order.
+     * @param first The first document ID owned by every shard.
+     */
+    public ShardedIndex(List<Shard> s, int[] first) {
+        shards = s;
+        firstDocIds = first;
+        pool = Executors.newFixedThreadPool(Math.max(1, s.size()), r -> {
+            Thread t = new Thread(r, "scatter");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    //---------------------------------------------
+    /**
+     * Splits n documents into contiguous docId ranges.
+     * @param n The number of documents.
+     * @param nShards The number of shards.
+     * @return nShards + 1 boundaries, shard i owns [r[i], r[i+1]).
+     */
+    static int[] ranges(int n, int nShards) {
+        int[] r = new int[nShards + 1];
+        for (int i = 0; i <= nShards; i++) {
+            r[i] = (int) ((long) n * i / nShards);
+        }
+        return r;
+    }
+
+    /**
+     * Builds all shards in this process, one thread per shard.
+     * @param files The sorted document paths; the position of a path is its docId.
+     * @param nShards The number of shards.
+     * @return The coordinator over the new shards.
+     */
+    public static ShardedIndex buildLocal(String[] files, int nShards) throws IOException {
+        int[] r = ranges(files.length, nShards);
+        List<Shard> shards = new ArrayList<Shard>();
+        for (int i = 0; i < nShards; i++) {
+            Index5 ix = new Index5();
+            shards.add(new LocalShard(ix));
+        }
+        ShardedIndex si = new ShardedIndex(shards, Arrays.copyOf(r, nShards));
+        si.scatter(s -> {
+            int i = shards.indexOf(s);
+            Index5 ix = ((LocalShard) s).index;
+            ix.buildIndex(Arrays.copyOfRange(files, r[i], r[i + 1]), r[i]);
+            return null;
+        });
+        si.finalizeShards();
+        return si;
+    }
+
+    /**
+     * Starts every shard as a separate {@link ShardServer} process on this
+     * machine and connects to them over loopback.
+     * @param files The sorted document paths; the position of a path is its docId.
+     * @param nShards The number of shard processes.
+     * @param basePort Shard i listens on basePort + i, or on a free port if basePort is 0.
+     * @return The coordinator over the shard processes.
+     */
+    public static ShardedIndex launchProcesses(String[] files, int nShards, int basePort) throws IOException {
+        int[] r = ranges(files.length, nShards);
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String cp = System.getProperty("java.class.path");
+        List<Process> procs = new ArrayList<Process>();
+        List<Shard> shards = new ArrayList<Shard>();
+        try {
+            for (int i = 0; i < nShards; i++) {
+                File list = File.createTempFile("shard" + i + "-", ".lst");
+                list.deleteOnExit();
+                try (Writer wr = new FileWriter(list)) {
+                    for (int f = r[i]; f < r[i + 1]; f++) {
+                        wr.write(files[f] + "\n");
+                    }
+                }
+                int port = basePort == 0 ? 0 : basePort + i;
+                ProcessBuilder pb = new ProcessBuilder(java, "-cp", cp, ShardServer.class.getName(),
+                        Integer.toString(port), Integer.toString(r[i]), list.getPath());
+                pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+                procs.add(pb.start());
+            }
+            // Shards index in parallel, wait for each one to report its port
+            for (int i = 0; i < procs.size(); i++) {
+                BufferedReader out = new BufferedReader(new InputStreamReader(procs.get(i).getInputStream()));
+                String ln;
+                while ((ln = out.readLine()) != null && !ln.startsWith("READY ")) {
+                    // indexing output of the shard
+                }
+                if (ln == null) {
+                    throw new IOException("Shard process exited before it was ready");
+                }
+                shards.add(new RemoteShard(Integer.parseInt(ln.substring(6).trim())));
+                drain(out, "shard" + i);
+            }
+        } catch (IOException e) {
+            for (Process p : procs) {
+                p.destroy();
+            }
+            throw e;
+        }
+        ShardedIndex si = new ShardedIndex(shards, Arrays.copyOf(r, nShards));
+        si.processes = procs;
+        si.finalizeShards();
+        return si;
+    }
+
+    /**
+     * Copies what a shard process prints after READY to this process's
+     * output on a daemon thread, so that a full pipe never blocks the shard.
+     * @param out The standard output of the shard process.
+     * @param name The prefix of every copied line.
+     */
+    static void drain(BufferedReader out, String name) {
+        Thread t = new Thread(() -> {
+            try (BufferedReader in = out) {
+                String ln;
+                while ((ln = in.readLine()) != null) {
+                    System.out.println(name + ": " + ln);
+                }
+            } catch (IOException e) {
+                // the shard process exited
+            }
+        }, name + "-output");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    //---------------------------------------------
+    /**
+     * Runs a request on all shards in parallel.
+     * @param call The request.
+     * @return One answer per shard, in shard order.
+     */
+    <T> List<T> scatter(ShardCall<T> call) throws IOException {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (Shard s : shards) {
+            futures.add(pool.submit(() -> call.call(s)));
+        }
+        List<T> answers = new ArrayList<T>();
+        try {
+            for (Future<T> f : futures) {
+                answers.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        return answers;
+    }
+
+    //---------------------------------------------
+    /**
+     * Sums the doc_freq of every term over all shards and has every shard
+     * recompute its document norms with these collection-wide statistics.
+     * Call it again after a shard changes.
+     */
+    public void finalizeShards() throws IOException {
+        Map<String, Integer> df = new HashMap<String, Integer>();
+        for (Map<String, Integer> v : scatter(s -> s.vocabulary())) {
+            for (Map.Entry<String, Integer> e : v.entrySet()) {
+                df.merge(e.getKey(), e.getValue(), Integer::sum);
+            }
+        }
+        int n = numDocs();
+        scatter(s -> {
+            s.finalizeIndex(n, df);
+            return null;
+        });
+    }
+
+    //---------------------------------------------
+    /**
+     * @return The number of documents in the whole collection.
+     */
+    public int numDocs() throws IOException {
+        int n = 0;
+        for (int c : scatter(s -> s.numDocs())) {
+            n += c;
+        }
+        return n;
+    }
+
+    /**
+     * Evaluates a Boolean AND query on all shards.
+     * @param phrase The query text.
+     * @return The matching document IDs in increasing order.
+     */
+    public List<Integer> and(String phrase) throws IOException {
+        List<String> terms = analyzer.queryTerms(phrase);
+        List<Integer> ids = new ArrayList<Integer>();
+        if (terms.isEmpty()) {
+            return ids;
+        }
+        // Shards own increasing docId ranges, so concatenation keeps the order
+        for (List<Integer> part : scatter(s -> s.and(terms))) {
+            ids.addAll(part);
+        }
+        return ids;
+    }
+
+    /**
+     * Ranks the whole collection against a query. The first round gathers
+     * doc_freq from every shard, the second asks every shard for its top k
+     * scored with the summed statistics, and the answers are merged.
+     * @param phrase The query text.
+     * @param k The number of documents to return.
+     * @return The k best documents of the collection, highest score first.
+     */
+    public List<ScoredDoc> rankedSearch(String phrase, int k) throws IOException {
+        List<String> terms = analyzer.queryTerms(phrase);
+        if (terms.isEmpty()) {
+            return new ArrayList<ScoredDoc>();
+        }
+        int[] df = new int[terms.size()];
+        int n = 0;
+        List<int[]> parts = scatter(s -> {
+            int[] local = s.docFreqs(terms);
+            int[] withN = Arrays.copyOf(local, local.length + 1);
+            withN[local.length] = s.numDocs();
+            return withN;
+        });
+        for (int[] part : parts) {
+            for (int i = 0; i < df.length; i++) {
+                df[i] += part[i];
+            }
+            n += part[df.length];
+        }
+        int total = n;
+        return ScoredDoc.merge(scatter(s -> s.topK(terms, df, total, k)), k);
+    }
+
+    /**
+     * Returns the metadata of a document from the shard that owns it.
+     * @param docId The document ID.
+     * @return The source record, or null if no shard owns the document.
+     */
+    public SourceRecord source(int docId) throws IOException {
+        int i = Arrays.binarySearch(firstDocIds, docId);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        // Empty shards share their first docId with the next one
+        while (i + 1 < firstDocIds.length && firstDocIds[i + 1] == docId) {
+            i++;
+        }
+        return i < 0 ? null : shards.get(i).source(docId);
+    }
+
+    /**
+     * Finds documents that contain a given phrase, formatted like
+     * {@link Index5#find_24_01(String)}.
+     * @param phrase The phrase to search for.
+     * @return A string listing the documents containing the phrase.
+     */
+    public String find_24_01(String phrase) throws IOException {
+        StringBuilder result = new StringBuilder();
+        for (int id : and(phrase)) {
+            SourceRecord sr = source(id);
+            result.append("\t").append(id).append(" - ").append(sr.title).append(" - ").append(sr.length).append("\n");
+        }
+        if (result.length() == 0) {
+            return "No documents found for the phrase: " + phrase;
+        }
+        return result.toString();
+    }
+
+    //---------------------------------------------
+    /**
+     * Closes every shard and stops shard processes started by this coordinator.
+     */
+    public void close() throws IOException {
+        pool.shutdownNow();
+        for (Shard s : shards) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                System.out.println("Closing shard failed: " + e.getMessage());
+            }
+        }
+        for (Process p : processes) {
+            p.destroy();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package invertedIndex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds a short extract of a document around the query terms and marks
+ * them. Text is tokenized and normalized with the same rules as indexing,
+ * so a term matches exactly the words that produced its postings.
+ */
+public class SnippetGenerator {
+
+    static final Pattern WORD = Pattern.compile("\\w+");
+
+    public int window = 20;        // number of words in a snippet
+    public String open = "[";      // inserted before a matched word
+    public String close = "]";     // inserted after a matched word
+
+    Index5 index;
+
+    public SnippetGenerator(Index5 ix) {
+        index = ix;
+    }
+
+    //---------------------------------------------
+    /**
+     * Returns the window of words holding the most distinct query terms.
+     * @param text The document text.
+     * @param terms The processed query terms.
+     * @return The snippet with the query terms marked.
+     */
+    public String snippet(String text, List<String> terms) {
+        List<int[]> words = new ArrayList<int[]>(); // start, end, query term number or -1
+        Matcher m = WORD.matcher(text);
+        while (m.find()) {
+            String w = m.group().toLowerCase();
+            int t = -1;
+            if (!index.stopWord(w)) {
+                t = terms.indexOf(index.stemWord(w));
+            }
+            words.add(new int[]{m.start(), m.end(), t});
+        }
+        if (words.isEmpty()) {
+            return "";
+        }
+
+        // slide the window, keep the one with most distinct terms, then most matches
+        Map<Integer, Integer> inWindow = new HashMap<Integer, Integer>();
+        int matches = 0;
+        int best = 0;
+        int bestDistinct = -1;
+        int bestMatches = -1;
+        for (int end = 0; end < words.size(); end++) {
+            int t = words.get(end)[2];
+            if (t >= 0) {
+                inWindow.merge(t, 1, Integer::sum);
+                matches++;
+            }
+            int start = end - window + 1;
+            if (start > 0) {
+                int out = words.get(start - 1)[2];
+                if (out >= 0) {
+                    matches--;
+                    if (inWindow.merge(out, -1, Integer::sum) == 0) {
+                        inWindow.remove(out);
+                    }
+                }
+            }
+            if (start >= 0 || end == words.size() - 1) {
+                if (inWindow.size() > bestDistinct || (inWindow.size() == bestDistinct && matches > bestMatches)) {
+                    best = Math.max(0, start);
+                    bestDistinct = inWindow.size();
+                    bestMatches = matches;
+                }
+            }
+        }
+
+        int last = Math.min(words.size(), best + window) - 1;
+        StringBuilder sb = new StringBuilder();
+        if (best > 0) {
+            sb.append("...");
+        }
+        int pos = words.get(best)[0];
+        for (int i = best; i <= last; i++) {
+            int[] w = words.get(i);
+            sb.append(text, pos, w[0]);
+            if (w[2] >= 0) {
+                sb.append(open).append(text, w[0], w[1]).append(close);
+            } else {
+                sb.append(text, w[0], w[1]);
+            }
+            pos = w[1];
+        }
+        if (last < words.size() - 1) {
+            sb.append("...");
+        }
+        return sb.toString().replaceAll("\\s+", " ");
+    }
+}
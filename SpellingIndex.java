@@ -0,0 +1,177 @@
+package invertedIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds dictionary terms within a small edit distance of a word without
+ * scanning the vocabulary (symmetric delete). Every term is stored under all
+ * strings obtained by deleting up to maxEdits characters from its prefix; a
+ * query word generates its own deletes, and the terms found under them are
+ * the only candidates whose true distance is computed.
+ */
+public class SpellingIndex {
+
+    /**
+     * A dictionary term close to the query word.
+     */
+    public static class Suggestion {
+        public String term;
+        public int distance;
+        public int term_freq;
+
+        Suggestion(String t, int d, int tf) {
+            term = t;
+            distance = d;
+            term_freq = tf;
+        }
+
+        @Override
+        public String toString() {
+            return term + "(" + distance + "," + term_freq + ")";
+        }
+    }
+
+    static final int PREFIX_LENGTH = 7; // deletes are generated from this many characters only
+
+    int maxEdits;
+    String[] terms;
+    int[] termFreqs;
+    // delete -> term numbers, slot 0 holds the count
+    HashMap<String, int[]> deletes = new HashMap<String, int[]>();
+
+    /**
+     * Builds the candidate index of a dictionary.
+     * @param index The inverted index.
+     * @param edits The largest edit distance that will be searched, 1 or 2.
+     */
+    public SpellingIndex(Map<String, DictEntry> index, int edits) {
+        maxEdits = edits;
+        terms = new String[index.size()];
+        termFreqs = new int[index.size()];
+        int t = 0;
+        Set<String> seen = new HashSet<String>();
+        for (Map.Entry<String, DictEntry> e : index.entrySet()) {
+            terms[t] = e.getKey();
+            termFreqs[t] = e.getValue().term_freq;
+            seen.clear();
+            String key = prefix(e.getKey());
+            seen.add(key);
+            addDeletes(key, maxEdits, seen);
+            for (String d : seen) {
+                add(d, t);
+            }
+            t++;
+        }
+    }
+
+    static String prefix(String w) {
+        return w.length() > PREFIX_LENGTH ? w.substring(0, PREFIX_LENGTH) : w;
+    }
+
+    static void addDeletes(String w, int edits, Set<String> out) {
+        if (edits == 0 || w.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < w.length(); i++) {
+            String d = w.substring(0, i) + w.substring(i + 1);
+            if (out.add(d)) {
+                addDeletes(d, edits - 1, out);
+            }
+        }
+    }
+
+    void add(String delete, int term) {
+        int[] list = deletes.get(delete);
+        if (list == null) {
+            list = new int[2];
+        } else if (list[0] + 1 == list.length) {
+            list = Arrays.copyOf(list, list.length * 2);
+        }
+        list[++list[0]] = term;
+        deletes.put(delete, list);
+    }
+
+    //---------------------------------------------
+    /**
+     * Returns the dictionary terms within an edit distance of a word.
+     * @param word The processed query word.
+     * @param edits The largest edit distance accepted, at most the one the index was built for.
+     * @return The suggestions, closest first, then by decreasing term_freq.
+     */
+    public List<Suggestion> suggest(String word, int edits) {
+        edits = Math.min(edits, maxEdits);
+        Set<String> keys = new HashSet<String>();
+        String key = prefix(word);
+        keys.add(key);
+        addDeletes(key, edits, keys);
+
+        Set<Integer> checked = new HashSet<Integer>();
+        List<Suggestion> result = new ArrayList<Suggestion>();
+        for (String k : keys) {
+            int[] list = deletes.get(k);
+            if (list == null) {
+                continue;
+            }
+            for (int i = 1; i <= list[0]; i++) {
+                int t = list[i];
+                if (!checked.add(t)) {
+                    continue;
+                }
+                int d = distance(word, terms[t], edits);
+                if (d <= edits) {
+                    result.add(new Suggestion(terms[t], d, termFreqs[t]));
+                }
+            }
+        }
+        result.sort((a, b) -> a.distance != b.distance ? Integer.compare(a.distance, b.distance)
+                : a.term_freq != b.term_freq ? Integer.compare(b.term_freq, a.term_freq)
+                : a.term.compareTo(b.term));
+        return result;
+    }
+
+    /**
+     * Computes the edit distance of two words, counting an adjacent
+     * transposition as one edit, and gives up early once it exceeds max.
+     * @return The distance, or max + 1 if it is larger than max.
+     */
+    static int distance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) {
+            return max + 1;
+        }
+        int n = a.length();
+        int m = b.length();
+        int[] prev2 = new int[m + 1];
+        int[] prev = new int[m + 1];
+        int[] cur = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            prev[j] = j;
+        }
+        for (int i = 1; i <= n; i++) {
+            cur[0] = i;
+            int rowMin = cur[0];
+            for (int j = 1; j <= m; j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int v = Math.min(Math.min(prev[j] + 1, cur[j - 1] + 1), prev[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    v = Math.min(v, prev2[j - 2] + 1);
+                }
+                cur[j] = v;
+                rowMin = Math.min(rowMin, v);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] tmp = prev2;
+            prev2 = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return prev[m];
+    }
+}
@@ -4,6 +4,8 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Test {
 
@@ -12,7 +14,7 @@ public class Test {
      * It builds an index from files in a specified directory, allows querying the index,
      * and provides an interactive search interface.
      *
-     * @param args Command-line arguments (not used in this program).
+     * @param args Command-line arguments; "watch" keeps reindexing changed files.
      * @throws IOException If an I/O error occurs during file operations.
      */
     public static void main(String args[]) throws IOException {
@@ -29,26 +31,34 @@ public class Test {
             return; // Exit the program if the directory is invalid.
         }
 
-        // Retrieve the list of files in the directory.
-        String[] fileList = directory.list();
-        if (fileList == null || fileList.length == 0) {
+        // Find the files in the directory tree, skipping the files this program writes there.
+        // Paths keep their docId across runs through the docids.map file.
+        CollectionScanner scanner = new CollectionScanner(filesDirectory);
+        scanner.addExclude("index");
+        scanner.addExclude("index.tmp");
+        scanner.addExclude("docids.map*");
+        scanner.addExclude("docs.store*");
+        scanner.setDocIdMap(filesDirectory + "docids.map");
+
+        // Keep the text of every document, used for snippets and to check phrase matches.
+        index.setDocStore(filesDirectory + "docs.store");
+
+        // Also index pairs of adjacent terms that involve frequent terms, used by phrase queries.
+        index.setBiwords(new BiwordIndex());
+
+        // Build the inverted index, reading each file as the stream reaches it.
+        index.buildIndex(scanner.stream());
+        System.out.println(scanner.report());
+        if (index.sources.isEmpty()) {
             System.out.println("No files found in the directory: " + filesDirectory);
             return; // Exit the program if no files are found.
         }
 
-        // Sort the list of files alphabetically using the sort method from Index5.
-        fileList = index.sort(fileList);
-
         // Set the total number of documents (N) in the index.
-        index.setN(fileList.length);
-
-        // Prepend the directory path to each file name for full file paths.
-        for (int i = 0; i < fileList.length; i++) {
-            fileList[i] = filesDirectory + fileList[i];
-        }
+        index.setN(index.sources.size());
 
-        // Build the inverted index from the list of files.
-        index.buildIndex(fileList);
+        // Precompute document norms and length statistics used by ranking.
+        index.finalizeIndex();
 
         // Store the index to a file named "index".
         index.store("index");
@@ -56,26 +66,61 @@ public class Test {
         // Print the dictionary (inverted index) to the console.
         index.printDictionary();
 
+        // Correct misspelled query words of four or more letters within one edit;
+        // results then start with the corrected query.
+        index.setFuzzy(1);
+
         // Test the search functionality with a predefined query.
         String testQuery = "data should plain greatest comif";
         System.out.println("Boolean Model result for \"" + testQuery + "\":");
         System.out.println(index.find_24_01(testQuery));
 
+        // Show how the predefined query was evaluated.
+        QueryExplain explain = new QueryExplain();
+        index.find_24_01(testQuery, explain);
+        System.out.println(explain);
+
+        // With the "watch" argument, keep the index in step with the directory.
+        DirectoryWatcher watcher = null;
+        if (args.length > 0 && args[0].equals("watch")) {
+            watcher = new DirectoryWatcher(index, scanner); // same directory tree and filters
+            watcher.start();
+        }
+
         // Set up an interactive search interface.
         BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
         String phrase;
         do {
             // Prompt the user to enter a search phrase.
-            System.out.println("Enter a search phrase (or press Enter to exit): ");
+            System.out.println("Enter a search phrase, prefix it with \"explain \" to profile it, quote it for a phrase (or press Enter to exit): ");
             phrase = in.readLine().trim();
 
             // If the user enters a phrase, search the index and display the results.
-            if (!phrase.isEmpty()) {
+            if (phrase.startsWith("explain ")) {
+                explain = new QueryExplain();
+                System.out.println(index.find_24_01(phrase.substring(8), explain));
+                System.out.println(explain);
+            } else if (phrase.length() > 1 && phrase.startsWith("\"") && phrase.endsWith("\"")) {
+                // documents added by the watcher are not in the document store,
+                // for them only the presence of the terms is known
+                List<Integer> unverified = new ArrayList<Integer>();
+                for (Posting p = index.findPhrase(phrase, unverified); p != null; p = p.next) {
+                    System.out.println("\t" + p.docId + " - " + index.sources.title(p.docId)
+                            + (unverified.contains(p.docId) ? " (terms found, order not verified)" : ""));
+                }
+            } else if (!phrase.isEmpty()) {
                 String result = index.find_24_01(phrase);
                 System.out.println(result);
             }
+            if (watcher != null) {
+                System.out.println("Watcher: " + watcher.metrics());
+            }
         } while (!phrase.isEmpty()); // Continue until the user presses Enter without typing a phrase.
 
+        if (watcher != null) {
+            watcher.stop();
+        }
+
         // Exit the program with a goodbye message.
         System.out.println("Exiting the program. Goodbye!");
     }
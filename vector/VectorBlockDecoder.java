@@ -0,0 +1,77 @@
+package invertedIndex;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Decodes packed blocks with the Java Vector API, four values per 128-bit
+ * vector. It is kept out of the main source directory because it needs the
+ * incubator module at compile and run time:
+ * <pre>
+ *   javac --add-modules jdk.incubator.vector -cp classes -d classes vector/VectorBlockDecoder.java
+ *   java --add-modules jdk.incubator.vector -cp classes ...
+ * </pre>
+ * When this class is missing or cannot be loaded, PackedPostings falls
+ * back to {@link ScalarBlockDecoder}.
+ */
+public class VectorBlockDecoder implements BlockDecoder {
+
+    static final VectorSpecies<Integer> S = IntVector.SPECIES_128;
+
+    public VectorBlockDecoder() {
+        if (IntVector.SPECIES_PREFERRED.vectorBitSize() < S.vectorBitSize()) {
+            throw new UnsupportedOperationException("no 128-bit vectors on this CPU");
+        }
+    }
+
+    @Override
+    public void unpack(int[] words, int offset, int bits, int[] out) {
+        IntVector zero = IntVector.zero(S);
+        if (bits == 0) {
+            for (int j = 0; j < PackedPostings.BLOCK; j += 4) {
+                zero.intoArray(out, j);
+            }
+            return;
+        }
+        IntVector mask = IntVector.broadcast(S, bits == 32 ? -1 : (1 << bits) - 1);
+        for (int j = 0; j < PackedPostings.BLOCK / 4; j++) {
+            int bit = j * bits;
+            int w = offset + (bit >>> 5) * 4;
+            int s = bit & 31;
+            IntVector v = IntVector.fromArray(S, words, w).lanewise(VectorOperators.LSHR, s);
+            if (s + bits > 32) {
+                v = v.or(IntVector.fromArray(S, words, w + 4).lanewise(VectorOperators.LSHL, 32 - s));
+            }
+            v.and(mask).intoArray(out, 4 * j);
+        }
+    }
+
+    @Override
+    public void decode(int[] words, int offset, int bits, int base, int[] out) {
+        IntVector sum = IntVector.broadcast(S, base);
+        if (bits == 0) {
+            for (int j = 0; j < PackedPostings.BLOCK; j += 4) {
+                sum.intoArray(out, j);
+            }
+            return;
+        }
+        IntVector mask = IntVector.broadcast(S, bits == 32 ? -1 : (1 << bits) - 1);
+        for (int j = 0; j < PackedPostings.BLOCK / 4; j++) {
+            int bit = j * bits;
+            int w = offset + (bit >>> 5) * 4;
+            int s = bit & 31;
+            IntVector v = IntVector.fromArray(S, words, w).lanewise(VectorOperators.LSHR, s);
+            if (s + bits > 32) {
+                v = v.or(IntVector.fromArray(S, words, w + 4).lanewise(VectorOperators.LSHL, 32 - s));
+            }
+            sum = sum.add(v.and(mask));
+            sum.intoArray(out, 4 * j);
+        }
+    }
+
+    @Override
+    public String name() {
+        return "vector (" + S.vectorBitSize() + "-bit)";
+    }
+}